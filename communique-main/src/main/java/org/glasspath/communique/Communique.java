@@ -32,7 +32,13 @@ import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedReader;
+import java.io.Console;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.prefs.Preferences;
 
 import javax.swing.BorderFactory;
@@ -68,9 +74,17 @@ import org.glasspath.common.swing.dialog.DialogUtils;
 import org.glasspath.common.swing.frame.FrameUtils;
 import org.glasspath.common.swing.statusbar.StatusBar;
 import org.glasspath.common.swing.theme.Theme;
+import org.glasspath.communique.batch.BatchSender;
+import org.glasspath.communique.batch.FieldContextFactory;
+import org.glasspath.communique.batch.MergeEngine;
 import org.glasspath.communique.editor.EmailEditorContext;
 import org.glasspath.communique.editor.EmailEditorPanel;
 import org.glasspath.communique.icons.Icons;
+import org.glasspath.communique.mail.Outbox;
+import org.glasspath.communique.mail.SendExecutor;
+import org.glasspath.communique.mail.SentFolderAppender;
+import org.glasspath.communique.mail.SmtpTransportPool;
+import org.glasspath.communique.media.ImageOptimizer;
 import org.glasspath.communique.tools.AccountTools;
 import org.glasspath.communique.tools.EmailToolBar;
 import org.glasspath.communique.tools.FileTools;
@@ -114,6 +128,11 @@ public class Communique implements FrameContext {
 	private static final Preferences preferences = Preferences.userNodeForPackage(Communique.class);
 
 	private final Configuration configuration;
+	private final SmtpTransportPool transportPool;
+	private final SendExecutor sendExecutor;
+	private final SentFolderAppender sentFolderAppender;
+	private final Outbox outbox;
+	private final MailablePreRenderer preRenderer;
 	private final JFrame frame;
 	private final ToolBarPanel toolBarPanel;
 	private final UndoActions undoActions;
@@ -136,6 +155,13 @@ public class Communique implements FrameContext {
 	public Communique(EmailEditorContext editorContext, IFieldContext templateFieldContext, String openFile) {
 
 		this.configuration = CommuniqueUtils.loadConfiguration(CONF_PATH);
+		this.transportPool = new SmtpTransportPool(configuration);
+		this.sendExecutor = SendExecutor.getInstance();
+		sendExecutor.configure(configuration);
+		this.sentFolderAppender = new SentFolderAppender(CommuniqueUtils.getFailedAppendsDir(), configuration);
+		this.outbox = new Outbox(CommuniqueUtils.getOutboxDir(), configuration, sendExecutor, transportPool, sentFolderAppender);
+		this.preRenderer = new MailablePreRenderer(this);
+		ImageOptimizer.getInstance().configure(configuration);
 
 		this.frame = new JFrame();
 		this.toolBarPanel = new ToolBarPanel();
@@ -210,6 +236,7 @@ public class Communique implements FrameContext {
 			public void actionPerformed(ActionEvent e) {
 				// TODO: This is a bit of a hack to trigger updating of tool-bar actions
 				mainPanel.getEmailEditor().getSelection().fireSelectionChanged();
+				preRenderer.invalidate();
 			}
 		});
 
@@ -268,6 +295,18 @@ public class Communique implements FrameContext {
 
 					frame.toFront();
 
+					if (outbox.getPendingEntries().size() > 0) {
+
+						SwingUtilities.invokeLater(new Runnable() {
+
+							@Override
+							public void run() {
+								CommuniqueUtils.resumeOutbox(Communique.this);
+							}
+						});
+
+					}
+
 					inited = true;
 
 				}
@@ -298,6 +337,26 @@ public class Communique implements FrameContext {
 		return configuration;
 	}
 
+	public SmtpTransportPool getTransportPool() {
+		return transportPool;
+	}
+
+	public SendExecutor getSendExecutor() {
+		return sendExecutor;
+	}
+
+	public SentFolderAppender getSentFolderAppender() {
+		return sentFolderAppender;
+	}
+
+	public Outbox getOutbox() {
+		return outbox;
+	}
+
+	public MailablePreRenderer getPreRenderer() {
+		return preRenderer;
+	}
+
 	public void openEmail(String emailPath, IFieldContext templateFieldContext) {
 		fileTools.loadEmail(emailPath, templateFieldContext);
 	}
@@ -307,17 +366,7 @@ public class Communique implements FrameContext {
 	}
 
 	public Account getAccount() {
-
-		if (configuration.getAccounts().size() > 0) {
-			if (configuration.getSelectedAccount() >= 0 && configuration.getSelectedAccount() < configuration.getAccounts().size()) {
-				return configuration.getAccounts().get(configuration.getSelectedAccount());
-			} else {
-				return configuration.getAccounts().get(0);
-			}
-		}
-
-		return null;
-
+		return CommuniqueUtils.getSelectedAccount(configuration);
 	}
 
 	public void send(int sendMode) {
@@ -541,6 +590,17 @@ public class Communique implements FrameContext {
 
 	protected void exitApplication() {
 		frame.setVisible(false);
+		preRenderer.stop();
+		outbox.close();
+		try {
+			// Give pending "Sent" folder appends a moment to finish
+			sentFolderAppender.awaitIdle(configuration.getTimeout());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sentFolderAppender.close();
+		// The send executor is shared with the other windows of this process
+		transportPool.close();
 	}
 
 	private class ToolBarPanel extends JPanel {
@@ -606,6 +666,12 @@ public class Communique implements FrameContext {
 		String themeArgument = null;
 		String nativesArgument = null;
 		String fontsArgument = null;
+		String passwordArgument = null;
+		List<String> sendArguments = new ArrayList<>();
+		String mergeArgument = null;
+		String dataArgument = null;
+		String fieldsArgument = null;
+		String recipientArgument = null;
 
 		if (args != null) {
 
@@ -613,10 +679,48 @@ public class Communique implements FrameContext {
 
 				try {
 
-					LOGGER.info("Parsing argument: " + arg);
+					// Never log the value of -password
+					if (arg.startsWith("-password")) {
+						LOGGER.info("Parsing argument: -password");
+					} else {
+						LOGGER.info("Parsing argument: " + arg);
+					}
 
 					boolean argParsed = false;
 
+					if (!argParsed) {
+						String sendArgument = Args.parseArgument(arg, "-send");
+						if (sendArgument != null) {
+							sendArguments.add(sendArgument);
+						}
+						argParsed = sendArgument != null;
+					}
+
+					if (!argParsed && passwordArgument == null) {
+						passwordArgument = Args.parseArgument(arg, "-password");
+						argParsed = passwordArgument != null;
+					}
+
+					if (!argParsed && mergeArgument == null) {
+						mergeArgument = Args.parseArgument(arg, "-merge");
+						argParsed = mergeArgument != null;
+					}
+
+					if (!argParsed && dataArgument == null) {
+						dataArgument = Args.parseArgument(arg, "-data");
+						argParsed = dataArgument != null;
+					}
+
+					if (!argParsed && fieldsArgument == null) {
+						fieldsArgument = Args.parseArgument(arg, "-fields");
+						argParsed = fieldsArgument != null;
+					}
+
+					if (!argParsed && recipientArgument == null) {
+						recipientArgument = Args.parseArgument(arg, "-recipient");
+						argParsed = recipientArgument != null;
+					}
+
 					if (!argParsed && openFileArgument == null) {
 						if (arg.toLowerCase().endsWith("." + XDoc.EMAIL_EXTENSION) && new File(arg).exists()) {
 							openFileArgument = arg;
@@ -648,6 +752,44 @@ public class Communique implements FrameContext {
 
 		}
 
+		// Passwords given on the command line are visible to other users (for example with ps), -password=-
+		// reads the password from standard input, without -password the environment variable is used
+		if ("-".equals(passwordArgument)) {
+			passwordArgument = readPassword();
+		} else if (passwordArgument != null) {
+			LOGGER.warn("The -password argument is visible to other users, use -password=- or " + BatchSender.PASSWORD_ENVIRONMENT_VARIABLE + " instead");
+		}
+
+		// Batch mode: send the given emails without creating any UI, see BatchSender
+		if (sendArguments.size() > 0) {
+			System.setProperty("java.awt.headless", "true");
+			int failed = BatchSender.run(sendArguments, passwordArgument);
+			System.exit(failed > 0 ? 1 : 0);
+		}
+
+		// Merge mode: merge the template with every row of the data file and send the results, the
+		// field context for a row is created by the FieldContextFactory class given with -fields
+		if (mergeArgument != null) {
+
+			System.setProperty("java.awt.headless", "true");
+
+			int failed = 1;
+
+			if (dataArgument == null || fieldsArgument == null) {
+				LOGGER.error("Merge mode needs -data and -fields arguments");
+			} else {
+				try {
+					FieldContextFactory fieldContextFactory = (FieldContextFactory) Class.forName(fieldsArgument).getDeclaredConstructor().newInstance();
+					failed = MergeEngine.run(mergeArgument, dataArgument, recipientArgument, fieldContextFactory, passwordArgument);
+				} catch (Exception e) {
+					LOGGER.error("Exception while creating field context factory: " + fieldsArgument, e);
+				}
+			}
+
+			System.exit(failed > 0 ? 1 : 0);
+
+		}
+
 		final String nativeLibraryPath = nativesArgument != null ? nativesArgument : applicationJarFile.getParent();
 		System.setProperty(GlasspathSystemProperties.NATIVE_LIBRARY_PATH, nativeLibraryPath);
 
@@ -697,4 +839,22 @@ public class Communique implements FrameContext {
 
 	}
 
+	private static String readPassword() {
+
+		Console console = System.console();
+		if (console != null) {
+			char[] password = console.readPassword("Password: ");
+			return password != null ? new String(password) : null;
+		}
+
+		try {
+			return new BufferedReader(new InputStreamReader(System.in)).readLine();
+		} catch (IOException e) {
+			LOGGER.error("Exception while reading password from standard input", e);
+		}
+
+		return null;
+
+	}
+
 }
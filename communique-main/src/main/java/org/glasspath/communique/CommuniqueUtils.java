@@ -23,12 +23,12 @@
 package org.glasspath.communique;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.net.URI;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.CompletableFuture;
 
 import javax.swing.JDialog;
 import javax.swing.JFrame;
@@ -37,6 +37,7 @@ import javax.swing.SwingUtilities;
 import org.glasspath.aerialist.Content;
 import org.glasspath.aerialist.Email;
 import org.glasspath.aerialist.HtmlExporter;
+import org.glasspath.aerialist.media.MediaCache;
 import org.glasspath.aerialist.media.MediaCache.ImageResource;
 import org.glasspath.common.GlasspathSystemProperties;
 import org.glasspath.common.os.OsUtils;
@@ -58,25 +59,59 @@ import org.glasspath.communique.account.AccountFinderDialog;
 import org.glasspath.communique.account.AccountLoginDialog;
 import org.glasspath.communique.editor.EmailEditorContext;
 import org.glasspath.communique.editor.EmailEditorPanel;
+import org.glasspath.communique.mail.InlineMailable;
+import org.glasspath.communique.mail.Outbox;
+import org.glasspath.communique.media.ImageOptimizer;
+import org.glasspath.communique.media.ImageStore;
+
+import jakarta.mail.internet.MimeMessage;
 
 public class CommuniqueUtils {
 
-	public static File getTempDir() {
+	private static File tempDir = null;
 
-		File tempDir = new File(System.getProperty("user.home") + "/.communique/temp"); //$NON-NLS-1$ //$NON-NLS-2$
+	public static synchronized File getTempDir() {
 
-		if (!tempDir.exists()) {
-			try {
-				tempDir.mkdirs();
-			} catch (Exception e) {
-				Communique.LOGGER.error("Exception wile creating temp dir: ", e); //$NON-NLS-1$
+		if (tempDir == null) {
+
+			tempDir = new File(System.getProperty("user.home") + "/.communique/temp"); //$NON-NLS-1$ //$NON-NLS-2$
+
+			if (!tempDir.exists()) {
+				try {
+					tempDir.mkdirs();
+				} catch (Exception e) {
+					Communique.LOGGER.error("Exception wile creating temp dir: ", e); //$NON-NLS-1$
+				}
 			}
+
 		}
 
 		return tempDir;
 
 	}
 
+	public static File getOutboxDir() {
+		return new File(System.getProperty("user.home") + "/.communique/outbox"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	public static File getFailedAppendsDir() {
+		return new File(getOutboxDir(), "failed-appends"); //$NON-NLS-1$
+	}
+
+	public static Account getSelectedAccount(Configuration configuration) {
+
+		if (configuration.getAccounts().size() > 0) {
+			if (configuration.getSelectedAccount() >= 0 && configuration.getSelectedAccount() < configuration.getAccounts().size()) {
+				return configuration.getAccounts().get(configuration.getSelectedAccount());
+			} else {
+				return configuration.getAccounts().get(0);
+			}
+		}
+
+		return null;
+
+	}
+
 	public static Configuration loadConfiguration(String path) {
 
 		Configuration configuration = null;
@@ -131,64 +166,129 @@ public class CommuniqueUtils {
 	}
 
 	public static Mailable createMailable(Communique context, Email email) {
+		return createMailable(context, email, false);
+	}
+
+	public static Mailable createMailable(Communique context, Email email, boolean inlineImages) {
 
 		if (email == null) {
 			email = createEmail(context);
 		}
 
+		String to = context.getEmailToolBar().getToTextField().getText();
+		String cc = context.getEmailToolBar().getCcTextField().getText();
+		String bcc = context.getEmailToolBar().getBccTextField().getText();
+		String subject = context.getEmailToolBar().toSubjectTextBox().getText();
+
+		EmailEditorPanel emailEditor = context.getMainPanel().getEmailEditor();
+
+		return createMailable(email, to, cc, bcc, subject, emailEditor.getMediaCache(), context.getEmailToolBar().getAttachmentsPanel().getAttachments(), inlineImages);
+
+	}
+
+	public static Mailable createMailable(Email email, String to, String cc, String bcc, String subject, MediaCache<?> mediaCache, List<File> attachments) {
+		return createMailable(email, to, cc, bcc, subject, mediaCache, attachments, false);
+	}
+
+	/**
+	 * With inlineImages the image bytes are kept in memory (see {@link InlineMailable}), this
+	 * is only supported for SMTP and .eml export, other share methods need image files.
+	 */
+	public static Mailable createMailable(Email email, String to, String cc, String bcc, String subject, MediaCache<?> mediaCache, List<File> attachments, boolean inlineImages) {
+		return createMailable(email, to, cc, bcc, subject, mediaCache != null ? mediaCache.getImageResources() : null, attachments, inlineImages);
+	}
+
+	public static Mailable createMailable(Email email, String to, String cc, String bcc, String subject, Map<String, ImageResource> imageResources, List<File> attachments, boolean inlineImages) {
+
 		HtmlExporter htmlExporter = new HtmlExporter();
 		htmlExporter.parse(email, "cid:"); //$NON-NLS-1$
 
-		Mailable mailable = new Mailable();
-		mailable.setTo(MailUtils.parseRecipients(context.getEmailToolBar().getToTextField().getText()));
-		mailable.setCc(MailUtils.parseRecipients(context.getEmailToolBar().getCcTextField().getText()));
-		mailable.setBcc(MailUtils.parseRecipients(context.getEmailToolBar().getBccTextField().getText()));
-		mailable.setSubject(context.getEmailToolBar().toSubjectTextBox().getText());
+		Mailable mailable = inlineImages ? new InlineMailable() : new Mailable();
+		mailable.setTo(MailUtils.parseRecipients(to));
+		mailable.setCc(MailUtils.parseRecipients(cc));
+		mailable.setBcc(MailUtils.parseRecipients(bcc));
+		mailable.setSubject(subject);
 		mailable.setText(htmlExporter.getPlainText());
 		mailable.setHtml(htmlExporter.getHtml());
 
-		EmailEditorPanel emailEditor = context.getMainPanel().getEmailEditor();
-		if (emailEditor.getMediaCache() != null) {
+		if (imageResources != null) {
+			addImages(mailable, email, imageResources, inlineImages);
+		}
 
-			try {
+		if (attachments != null) {
+			for (File attachment : attachments) {
+				mailable.addAttachment(attachment.getAbsolutePath());
+			}
+		}
 
-				Content content = new Content();
-				content.setRoot(email);
+		return mailable;
 
-				List<String> imageKeys = content.getImageKeys();
+	}
 
-				for (Entry<String, ImageResource> entry : emailEditor.getMediaCache().getImageResources().entrySet()) {
+	/**
+	 * Adds the images which are used by the email, inlineImages requires an {@link InlineMailable}.
+	 */
+	public static void addImages(Mailable mailable, Email email, Map<String, ImageResource> imageResources, boolean inlineImages) {
 
-					if (imageKeys.contains(entry.getKey())) {
+		try {
 
-						File imageFile = new File(getTempDir(), entry.getKey());
+			Content content = new Content();
+			content.setRoot(email);
 
-						try (FileOutputStream out = new FileOutputStream(imageFile)) {
-							out.write(entry.getValue().getBytes());
-						}
+			List<String> imageKeys = content.getImageKeys();
 
-						if (mailable.getImages() == null) {
-							mailable.setImages(new HashMap<String, String>());
-						}
+			Map<String, byte[]> images = new LinkedHashMap<>();
+			for (Entry<String, ImageResource> entry : imageResources.entrySet()) {
+				if (imageKeys.contains(entry.getKey())) {
+					images.put(entry.getKey(), entry.getValue().getBytes());
+				}
+			}
+
+			// Images are scaled down and re-encoded in parallel, only inline images may change
+			// format because mail clients receive the other images by their (key) file name
+			images = ImageOptimizer.getInstance().optimize(images, inlineImages);
+
+			for (Entry<String, byte[]> entry : images.entrySet()) {
 
-						mailable.getImages().put(entry.getKey(), imageFile.getAbsolutePath());
+				if (inlineImages) {
+					((InlineMailable) mailable).getImageData().put(entry.getKey(), entry.getValue());
+				} else {
 
+					// Identical images are only written once, the store removes images which are no longer used
+					File imageFile = ImageStore.getInstance().store(entry.getKey(), entry.getValue());
+
+					if (mailable.getImages() == null) {
+						mailable.setImages(new HashMap<String, String>());
 					}
 
+					mailable.getImages().put(entry.getKey(), imageFile.getAbsolutePath());
+
 				}
 
-			} catch (Exception e) {
-				// TODO: Inform user
-				Communique.LOGGER.error("Exception while creating images for mailable", e); //$NON-NLS-1$
 			}
 
+		} catch (Exception e) {
+			// TODO: Inform user
+			Communique.LOGGER.error("Exception while creating images for mailable", e); //$NON-NLS-1$
 		}
 
-		for (File attachment : context.getEmailToolBar().getAttachmentsPanel().getAttachments()) {
-			mailable.addAttachment(attachment.getAbsolutePath());
-		}
+	}
 
-		return mailable;
+	private static void sendIndividually(Communique context, Mailable mailable, Account account, String password) throws Exception {
+
+		List<MimeMessage> messages = context.getTransportPool().createIndividualMessages(mailable, account);
+
+		for (int i = 0; i < messages.size(); i++) {
+
+			try {
+				context.getTransportPool().send(messages.get(i), account, password);
+			} catch (Exception e) {
+				throw new ShareException("Sent " + i + " of " + messages.size() + " messages", e); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			}
+
+			context.getSentFolderAppender().append(messages.get(i), account, password);
+
+		}
 
 	}
 
@@ -222,53 +322,80 @@ public class CommuniqueUtils {
 			if (account != null) {
 
 				Account selectedAccount = account;
+				String password = loginDialog.getPassword();
+
+				// Swing components are only read here, the send task works on the snapshot
+				ComposeSnapshot snapshot = ComposeSnapshot.capture(context);
+
+				// Now that the password is known emails that are still in the outbox can be retried
+				context.getOutbox().resume(selectedAccount, password);
 
 				JDialog busyDialog = DialogUtils.showBusyMessage(context.getFrame(), "Sending email", "Sending email..", true);
 
-				// Modal dialog blocks on setVisible(true) so we have to start a new thread
-				new Thread(new Runnable() {
+				// Modal dialog blocks on setVisible(true) so it's shown after the send task has been queued
+				SwingUtilities.invokeLater(new Runnable() {
 
 					@Override
 					public void run() {
+						busyDialog.setVisible(true);
+					}
+				});
 
-						SwingUtilities.invokeLater(new Runnable() {
+				// Sends are queued per account so bursts are limited to the configured connections and rate
+				context.getSendExecutor().submit(selectedAccount, new Runnable() {
 
-							@Override
-							public void run() {
-								busyDialog.setVisible(true);
-							}
-						});
+					@Override
+					public void run() {
+
+						Mailable mailable = null;
 
 						try {
 
-							Mailable mailable = createMailable(context);
+							mailable = snapshot.createMailable(true);
 
-							org.simplejavamail.api.email.Email simpleEmail = MailShareUtils.createSimpleEmail(mailable, selectedAccount);
-							if (simpleEmail != null) {
+							if (snapshot.isSendIndividually()) {
 
-								// No need to set async to true because we already created a background thread
-								CompletableFuture<Void> future = MailShareUtils.sendSimpleEmail(simpleEmail, selectedAccount, loginDialog.getPassword(), context.getConfiguration().getTimeout(), false);
-								if (future != null) {
+								// Individual sends are not queued in the outbox, a retry would send to all recipients again
+								Mailable individualMailable = mailable;
+								mailable = null;
 
-									future.get();
+								sendIndividually(context, individualMailable, selectedAccount, password);
 
-									if (selectedAccount.getImapConfiguration() != null) {
-										MailShareUtils.saveSimpleEmailToImapFolder(simpleEmail, selectedAccount, loginDialog.getPassword(), context.getConfiguration().getTimeout());
-									}
+								closeBusyDialog(null);
 
-									closeBusyDialog(null);
+								return;
 
-								}
+							}
+
+							// Connections are kept alive by the pool so the next email doesn't have to authenticate again
+							MimeMessage message = context.getTransportPool().send(mailable, selectedAccount, password);
+							if (message != null) {
+
+								// Saving to the "Sent" folder happens in the background, the user doesn't have to wait for it
+								context.getSentFolderAppender().append(message, selectedAccount, password);
+
+								closeBusyDialog(null);
 
 							}
 
 						} catch (Exception e) {
-							closeBusyDialog(e);
+
+							if (mailable != null && Outbox.isTransient(e)) {
+								context.getOutbox().add(mailable, selectedAccount, password);
+								closeBusyDialog(e, true);
+							} else {
+								closeBusyDialog(e, false);
+							}
+
 						}
 
 					}
 
 					private void closeBusyDialog(Throwable e) {
+						closeBusyDialog(e, false);
+					}
+
+					private void closeBusyDialog(Throwable e, boolean queued) {
 
 						SwingUtilities.invokeLater(new Runnable() {
 
@@ -277,7 +404,10 @@ public class CommuniqueUtils {
 
 								busyDialog.setVisible(false);
 
-								if (e != null) {
+								if (queued) {
+									Communique.LOGGER.warn("Email queued in outbox after exception: " + e.getMessage()); //$NON-NLS-1$
+									DialogUtils.showWarningMessage(context.getFrame(), "Email queued", "The email could not be sent right now, it has been placed in the outbox and will be sent automatically.");
+								} else if (e != null) {
 									Communique.LOGGER.error("Exception while sending email", e); //$NON-NLS-1$
 									DialogUtils.showWarningMessage(context.getFrame(), "Warning", "Something went wrong, please check the application log.", e);
 								} else {
@@ -294,7 +424,27 @@ public class CommuniqueUtils {
 						});
 
 					}
-				}).start();
+				});
+
+			}
+
+		}
+
+	}
+
+	public static void resumeOutbox(Communique context) {
+
+		for (Account account : context.getConfiguration().getAccounts()) {
+
+			int pendingCount = context.getOutbox().getPendingCount(account);
+			if (pendingCount > 0) {
+
+				Communique.LOGGER.info("Outbox: " + pendingCount + " unsent emails for " + account.getEmail()); //$NON-NLS-1$ //$NON-NLS-2$
+
+				AccountLoginDialog loginDialog = new AccountLoginDialog(context, account.getEmail(), "", false, false); //$NON-NLS-1$
+				if (loginDialog.login() == LoginDialog.RESULT_OK) {
+					context.getOutbox().resume(account, loginDialog.getPassword());
+				}
 
 			}
 
@@ -306,9 +456,9 @@ public class CommuniqueUtils {
 
 		try {
 
-			Mailable mailable = createMailable(context);
+			Mailable mailable = ComposeSnapshot.capture(context).createMailable(true);
 
-			org.simplejavamail.api.email.Email simpleEmail = MailShareUtils.createSimpleEmail(mailable, context.getAccount());
+			org.simplejavamail.api.email.Email simpleEmail = InlineMailable.createSimpleEmail(mailable, context.getAccount());
 			if (simpleEmail != null) {
 
 				File emlFile = new File(getTempDir(), "draft.eml"); // TODO?
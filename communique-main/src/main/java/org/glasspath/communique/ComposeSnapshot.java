@@ -0,0 +1,130 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.glasspath.aerialist.Email;
+import org.glasspath.aerialist.media.MediaCache;
+import org.glasspath.aerialist.media.MediaCache.ImageResource;
+import org.glasspath.common.share.mail.Mailable;
+import org.glasspath.communique.editor.EmailEditorContext;
+
+/**
+ * Everything that is needed to send the email in the compose window, captured on the EDT.
+ * The snapshot doesn't reference any Swing components so the remaining work (HTML export,
+ * image extraction, MIME encoding and transport) can be done on any thread.
+ */
+public class ComposeSnapshot {
+
+	private final Mailable preRendered;
+	private final Email email;
+	private final String to;
+	private final String cc;
+	private final String bcc;
+	private final String subject;
+	private final Map<String, ImageResource> imageResources;
+	private final List<File> attachments;
+	private final boolean sendIndividually;
+
+	private ComposeSnapshot(Mailable preRendered, Email email, String to, String cc, String bcc, String subject, Map<String, ImageResource> imageResources, List<File> attachments, boolean sendIndividually) {
+		this.preRendered = preRendered;
+		this.email = email;
+		this.to = to;
+		this.cc = cc;
+		this.bcc = bcc;
+		this.subject = subject;
+		this.imageResources = imageResources;
+		this.attachments = attachments;
+		this.sendIndividually = sendIndividually;
+	}
+
+	public String getTo() {
+		return to;
+	}
+
+	public String getCc() {
+		return cc;
+	}
+
+	public String getBcc() {
+		return bcc;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public List<File> getAttachments() {
+		return attachments;
+	}
+
+	public boolean isSendIndividually() {
+		return sendIndividually;
+	}
+
+	/**
+	 * Creates the mailable, this can be called on any thread. The pre-rendered mailable
+	 * contains inline images, without inline images the email is rendered in full.
+	 */
+	public Mailable createMailable(boolean inlineImages) {
+
+		if (preRendered != null && inlineImages) {
+			return preRendered;
+		}
+
+		return CommuniqueUtils.createMailable(email, to, cc, bcc, subject, imageResources, attachments, inlineImages);
+
+	}
+
+	/**
+	 * Captures the current state of the compose window, must be called on the EDT. When the
+	 * background pre-render is up to date it is kept as well.
+	 */
+	public static ComposeSnapshot capture(Communique context) {
+
+		boolean sendIndividually = context.getEditorContext() instanceof EmailEditorContext && ((EmailEditorContext) context.getEditorContext()).isSendIndividually();
+
+		Mailable preRendered = context.getPreRenderer().getMailable();
+
+		String to = context.getEmailToolBar().getToTextField().getText();
+		String cc = context.getEmailToolBar().getCcTextField().getText();
+		String bcc = context.getEmailToolBar().getBccTextField().getText();
+		String subject = context.getEmailToolBar().toSubjectTextBox().getText();
+
+		MediaCache<?> mediaCache = context.getMainPanel().getEmailEditor().getMediaCache();
+		Map<String, ImageResource> imageResources = mediaCache != null ? new HashMap<>(mediaCache.getImageResources()) : new HashMap<String, ImageResource>();
+
+		List<File> attachments = context.getEmailToolBar().getAttachmentsPanel().getAttachments();
+		attachments = attachments != null ? new ArrayList<>(attachments) : new ArrayList<File>();
+
+		return new ComposeSnapshot(preRendered, CommuniqueUtils.createEmail(context), to, cc, bcc, subject, Collections.unmodifiableMap(imageResources), Collections.unmodifiableList(attachments), sendIndividually);
+
+	}
+
+}
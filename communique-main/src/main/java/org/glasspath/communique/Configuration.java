@@ -8,6 +8,16 @@ import org.glasspath.common.share.mail.account.Account;
 public class Configuration {
 
 	private int timeout = 30000;
+	private long smtpIdleTimeout = 60000;
+	private long smtpMaxConnectionAge = 300000;
+	private boolean smtpPipeliningEnabled = true;
+	private int maxConnectionsPerAccount = 2;
+	private double maxMessagesPerSecond = 0.0;
+	private long streamingAttachmentThreshold = 1048576L;
+	private boolean imageOptimizationEnabled = true;
+	private int maxImageWidth = 1200;
+	private float imageQuality = 0.85F;
+	private boolean tileCacheEnabled = false;
 	private List<Account> accounts = new ArrayList<>();
 	private int selectedAccount = 0;
 
@@ -23,6 +33,86 @@ public class Configuration {
 		this.timeout = timeout;
 	}
 
+	public long getSmtpIdleTimeout() {
+		return smtpIdleTimeout;
+	}
+
+	public void setSmtpIdleTimeout(long smtpIdleTimeout) {
+		this.smtpIdleTimeout = smtpIdleTimeout;
+	}
+
+	public long getSmtpMaxConnectionAge() {
+		return smtpMaxConnectionAge;
+	}
+
+	public void setSmtpMaxConnectionAge(long smtpMaxConnectionAge) {
+		this.smtpMaxConnectionAge = smtpMaxConnectionAge;
+	}
+
+	public boolean isSmtpPipeliningEnabled() {
+		return smtpPipeliningEnabled;
+	}
+
+	public void setSmtpPipeliningEnabled(boolean smtpPipeliningEnabled) {
+		this.smtpPipeliningEnabled = smtpPipeliningEnabled;
+	}
+
+	public int getMaxConnectionsPerAccount() {
+		return maxConnectionsPerAccount;
+	}
+
+	public void setMaxConnectionsPerAccount(int maxConnectionsPerAccount) {
+		this.maxConnectionsPerAccount = maxConnectionsPerAccount;
+	}
+
+	public double getMaxMessagesPerSecond() {
+		return maxMessagesPerSecond;
+	}
+
+	public void setMaxMessagesPerSecond(double maxMessagesPerSecond) {
+		this.maxMessagesPerSecond = maxMessagesPerSecond;
+	}
+
+	public long getStreamingAttachmentThreshold() {
+		return streamingAttachmentThreshold;
+	}
+
+	public void setStreamingAttachmentThreshold(long streamingAttachmentThreshold) {
+		this.streamingAttachmentThreshold = streamingAttachmentThreshold;
+	}
+
+	public boolean isImageOptimizationEnabled() {
+		return imageOptimizationEnabled;
+	}
+
+	public void setImageOptimizationEnabled(boolean imageOptimizationEnabled) {
+		this.imageOptimizationEnabled = imageOptimizationEnabled;
+	}
+
+	public int getMaxImageWidth() {
+		return maxImageWidth;
+	}
+
+	public void setMaxImageWidth(int maxImageWidth) {
+		this.maxImageWidth = maxImageWidth;
+	}
+
+	public float getImageQuality() {
+		return imageQuality;
+	}
+
+	public void setImageQuality(float imageQuality) {
+		this.imageQuality = imageQuality;
+	}
+
+	public boolean isTileCacheEnabled() {
+		return tileCacheEnabled;
+	}
+
+	public void setTileCacheEnabled(boolean tileCacheEnabled) {
+		this.tileCacheEnabled = tileCacheEnabled;
+	}
+
 	public List<Account> getAccounts() {
 		return accounts;
 	}
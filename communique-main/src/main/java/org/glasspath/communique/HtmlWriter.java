@@ -0,0 +1,108 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes exported HTML to a writer or channel in fixed-size chunks, the HTML is encoded chunk
+ * by chunk so no byte copy of the complete document is created.
+ */
+public class HtmlWriter {
+
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	private HtmlWriter() {
+
+	}
+
+	public static void write(CharSequence html, Writer writer) throws IOException {
+
+		for (int start = 0; start < html.length(); start += CHUNK_SIZE) {
+			writer.append(html, start, Math.min(html.length(), start + CHUNK_SIZE));
+		}
+
+		writer.flush();
+
+	}
+
+	public static void write(CharSequence html, WritableByteChannel channel) throws IOException {
+		write(html, channel, StandardCharsets.UTF_8);
+	}
+
+	public static void write(CharSequence html, WritableByteChannel channel, Charset charset) throws IOException {
+
+		CharsetEncoder encoder = charset.newEncoder();
+		encoder.onMalformedInput(CodingErrorAction.REPLACE);
+		encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+		CharBuffer in = CharBuffer.wrap(html);
+		ByteBuffer out = ByteBuffer.allocateDirect(CHUNK_SIZE);
+
+		while (true) {
+
+			CoderResult result = encoder.encode(in, out, true);
+			if (result.isError()) {
+				try {
+					result.throwException();
+				} catch (CharacterCodingException e) {
+					throw new IOException(e);
+				}
+			}
+
+			flush(out, channel);
+
+			if (result.isUnderflow()) {
+				break;
+			}
+
+		}
+
+		while (encoder.flush(out).isOverflow()) {
+			flush(out, channel);
+		}
+		flush(out, channel);
+
+	}
+
+	private static void flush(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+import org.glasspath.aerialist.Email;
+import org.glasspath.aerialist.HtmlExporter;
+import org.glasspath.aerialist.media.MediaCache;
+import org.glasspath.aerialist.media.MediaCache.ImageResource;
+import org.glasspath.common.share.mail.MailUtils;
+import org.glasspath.common.share.mail.Mailable;
+import org.glasspath.communique.mail.InlineMailable;
+
+/**
+ * Renders the HTML, plain text and inline images of the email in the background once edits
+ * have settled, so sending doesn't have to do this when nothing changed since. All methods
+ * must be called on the EDT.
+ */
+public class MailablePreRenderer {
+
+	public static final int IDLE_DELAY = 750;
+
+	private final Communique context;
+	private final Timer timer;
+	private int generation = 0;
+	private InlineMailable rendered = null;
+
+	public MailablePreRenderer(Communique context) {
+
+		this.context = context;
+
+		timer = new Timer(IDLE_DELAY, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				render();
+			}
+		});
+		timer.setRepeats(false);
+
+	}
+
+	/**
+	 * Discards the pre-rendered body and schedules a new render, called whenever the
+	 * content of the email changed.
+	 */
+	public void invalidate() {
+		generation++;
+		rendered = null;
+		timer.restart();
+	}
+
+	private void render() {
+
+		final int renderGeneration = generation;
+
+		// The model and image map are copied on the EDT, exporting happens on a worker thread
+		final Email email = CommuniqueUtils.createEmail(context);
+		MediaCache<?> mediaCache = context.getMainPanel().getEmailEditor().getMediaCache();
+		final Map<String, ImageResource> imageResources = mediaCache != null ? new HashMap<>(mediaCache.getImageResources()) : new HashMap<String, ImageResource>();
+
+		context.getSendExecutor().execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					HtmlExporter htmlExporter = new HtmlExporter();
+					htmlExporter.parse(email, "cid:"); //$NON-NLS-1$
+
+					InlineMailable mailable = new InlineMailable();
+					mailable.setText(htmlExporter.getPlainText());
+					mailable.setHtml(htmlExporter.getHtml());
+					CommuniqueUtils.addImages(mailable, email, imageResources, true);
+
+					SwingUtilities.invokeLater(new Runnable() {
+
+						@Override
+						public void run() {
+							if (generation == renderGeneration) {
+								rendered = mailable;
+							}
+						}
+					});
+
+				} catch (Exception e) {
+					Communique.LOGGER.warn("Exception while pre-rendering email", e); //$NON-NLS-1$
+				}
+
+			}
+		});
+
+	}
+
+	/**
+	 * Returns a mailable with the pre-rendered body and the current recipients, subject and
+	 * attachments, or null if the email changed after it was last rendered.
+	 */
+	public Mailable getMailable() {
+
+		if (rendered == null) {
+			return null;
+		}
+
+		InlineMailable mailable = new InlineMailable(new LinkedHashMap<>(rendered.getImageData()));
+		mailable.setTo(MailUtils.parseRecipients(context.getEmailToolBar().getToTextField().getText()));
+		mailable.setCc(MailUtils.parseRecipients(context.getEmailToolBar().getCcTextField().getText()));
+		mailable.setBcc(MailUtils.parseRecipients(context.getEmailToolBar().getBccTextField().getText()));
+		mailable.setSubject(context.getEmailToolBar().toSubjectTextBox().getText());
+		mailable.setText(rendered.getText());
+		mailable.setHtml(rendered.getHtml());
+
+		List<File> attachments = context.getEmailToolBar().getAttachmentsPanel().getAttachments();
+		if (attachments != null) {
+			for (File attachment : attachments) {
+				mailable.addAttachment(attachment.getAbsolutePath());
+			}
+		}
+
+		return mailable;
+
+	}
+
+	public void stop() {
+		timer.stop();
+	}
+
+}
@@ -114,6 +114,7 @@ public class MainPanel extends AbstractMainPanel<Communique> {
 		try {
 			Email email = xmlMapper.readValue(sourceEditor.getSource(), Email.class);
 			emailEditor.getEmailContainer().init(email);
+			context.getPreRenderer().invalidate();
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
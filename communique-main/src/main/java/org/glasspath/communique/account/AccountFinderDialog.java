@@ -57,7 +57,7 @@ public class AccountFinderDialog extends DefaultDialog {
 		getOkButton().setText(okButtonText);
 		getOkButton().setVisible(false);
 
-		new Thread(new Runnable() {
+		context.getSendExecutor().execute(new Runnable() {
 
 			@Override
 			public void run() {
@@ -144,7 +144,7 @@ public class AccountFinderDialog extends DefaultDialog {
 				}
 
 			}
-		}).start();
+		});
 
 		pack();
 		setLocationRelativeTo(context.getFrame());
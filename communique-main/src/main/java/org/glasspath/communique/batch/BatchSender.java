@@ -0,0 +1,344 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.batch;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.glasspath.aerialist.Email;
+import org.glasspath.aerialist.XDoc;
+import org.glasspath.aerialist.media.BufferedImageMediaCache;
+import org.glasspath.aerialist.reader.XDocReader;
+import org.glasspath.common.share.mail.Mailable;
+import org.glasspath.common.share.mail.account.Account;
+import org.glasspath.communique.Communique;
+import org.glasspath.communique.CommuniqueUtils;
+import org.glasspath.communique.Configuration;
+import org.glasspath.communique.mail.Outbox;
+import org.glasspath.communique.mail.SendExecutor;
+import org.glasspath.communique.mail.SentFolderAppender;
+import org.glasspath.communique.mail.SmtpTransportPool;
+import org.glasspath.communique.media.ImageOptimizer;
+
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Sends emails stored as .xdoc files over SMTP without creating any UI. Used by
+ * {@link Communique#main(String[])} when one or more -send arguments are given.
+ */
+public class BatchSender {
+
+	public static final String PASSWORD_ENVIRONMENT_VARIABLE = "COMMUNIQUE_PASSWORD"; //$NON-NLS-1$
+	public static final long OUTBOX_WAIT = 600000;
+
+	private final Configuration configuration;
+	private final Account account;
+	private final String password;
+	private final SmtpTransportPool transportPool;
+	private final SendExecutor sendExecutor;
+	private final SentFolderAppender sentFolderAppender;
+	private final Outbox outbox;
+	private final List<String> queued = new ArrayList<>();
+
+	public BatchSender(Configuration configuration, Account account, String password) {
+		this.configuration = configuration;
+		this.account = account;
+		this.password = password;
+		this.transportPool = new SmtpTransportPool(configuration);
+		this.sendExecutor = SendExecutor.getInstance();
+		sendExecutor.configure(configuration);
+		this.sentFolderAppender = new SentFolderAppender(CommuniqueUtils.getFailedAppendsDir(), configuration);
+		this.outbox = new Outbox(CommuniqueUtils.getOutboxDir(), configuration, sendExecutor, transportPool, sentFolderAppender);
+		ImageOptimizer.getInstance().configure(configuration);
+	}
+
+	public Configuration getConfiguration() {
+		return configuration;
+	}
+
+	public Account getAccount() {
+		return account;
+	}
+
+	public SendExecutor getSendExecutor() {
+		return sendExecutor;
+	}
+
+	/**
+	 * Sends all given files, returns the number of emails that could not be sent. Emails that
+	 * failed with a transient error are retried through the outbox for at most OUTBOX_WAIT ms.
+	 */
+	public int send(List<File> files) {
+
+		int failed = 0;
+
+		try {
+
+			resume();
+
+			// All files are queued at once, the executor limits the number of connections and the send rate
+			List<Future<Boolean>> results = new ArrayList<>();
+			for (File file : files) {
+				results.add(sendExecutor.submit(account, new Callable<Boolean>() {
+
+					@Override
+					public Boolean call() throws Exception {
+						return send(file);
+					}
+				}));
+			}
+
+			for (Future<Boolean> result : results) {
+				try {
+					if (!result.get()) {
+						failed++;
+					}
+				} catch (ExecutionException e) {
+					failed++;
+				}
+			}
+
+			failed += finish();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failed = files.size();
+		} finally {
+			close();
+		}
+
+		Communique.LOGGER.info("Batch send finished, sent: " + (files.size() - failed) + ", failed: " + failed); //$NON-NLS-1$ //$NON-NLS-2$
+
+		return failed;
+
+	}
+
+	/**
+	 * Emails left in the outbox by previous runs are sent along with this batch.
+	 */
+	public void resume() {
+		outbox.resume(account, password);
+	}
+
+	/**
+	 * Waits for outbox retries and "Sent" folder appends to finish, returns the number of emails
+	 * queued in the outbox by this sender which were not sent: emails which were dropped after a
+	 * permanent failure or too many attempts, and emails which are still pending (these will be
+	 * retried by the next run).
+	 */
+	public int finish() throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + OUTBOX_WAIT;
+		while (outbox.getPendingCount(account) > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(1000);
+		}
+
+		if (!sentFolderAppender.awaitIdle(OUTBOX_WAIT)) {
+			Communique.LOGGER.warn("Not all emails were appended to the sent folder"); //$NON-NLS-1$
+		}
+
+		int failed = 0;
+
+		synchronized (queued) {
+			for (String id : queued) {
+				if (!Boolean.TRUE.equals(outbox.getOutcome(id))) {
+					failed++;
+				}
+			}
+		}
+
+		int pending = outbox.getPendingCount(account);
+		if (pending > 0) {
+			Communique.LOGGER.warn("Emails left in the outbox: " + pending); //$NON-NLS-1$
+		}
+
+		return failed;
+
+	}
+
+	public void close() {
+		outbox.close();
+		sentFolderAppender.close();
+		// Batch runs own the process, this cancels whatever is still queued
+		sendExecutor.shutdown();
+		transportPool.close();
+	}
+
+	public boolean send(File file) {
+
+		try {
+
+			BufferedImageMediaCache mediaCache = new BufferedImageMediaCache();
+
+			XDoc xDoc = XDocReader.read(file.getAbsolutePath(), mediaCache);
+			if (xDoc != null && xDoc.getContent() != null && xDoc.getContent().getRoot() instanceof Email) {
+
+				Email email = (Email) xDoc.getContent().getRoot();
+				String subject = email.getSubjectTextBox() != null ? email.getSubjectTextBox().getText() : ""; //$NON-NLS-1$
+
+				Mailable mailable = CommuniqueUtils.createMailable(email, email.getTo(), email.getCc(), email.getBcc(), subject, mediaCache.getImageResources(), Collections.<File> emptyList(), false);
+
+				return send(mailable, file.getAbsolutePath());
+
+			} else {
+				Communique.LOGGER.error("File does not contain an email: " + file.getAbsolutePath()); //$NON-NLS-1$
+			}
+
+		} catch (Exception e) {
+			Communique.LOGGER.error("Exception while reading: " + file.getAbsolutePath(), e); //$NON-NLS-1$
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Sends the mailable on the calling thread, emails that fail with a transient error are
+	 * placed in the outbox and return true, their final outcome is counted by {@link #finish()}.
+	 */
+	public boolean send(Mailable mailable, String name) {
+
+		try {
+
+			MimeMessage message = transportPool.send(mailable, account, password);
+			if (message != null) {
+
+				sentFolderAppender.append(message, account, password);
+
+				Communique.LOGGER.info("Sent: " + name); //$NON-NLS-1$
+
+				return true;
+
+			}
+
+		} catch (Exception e) {
+
+			if (Outbox.isTransient(e)) {
+				Communique.LOGGER.warn("Queued in outbox: " + name + ", " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+				String id = outbox.add(mailable, account, password);
+				synchronized (queued) {
+					queued.add(id);
+				}
+				return true;
+			}
+
+			Communique.LOGGER.error("Exception while sending: " + name, e); //$NON-NLS-1$
+
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Collects the email files for the given paths, a path can point to an email
+	 * file or to a directory in which case all email files in it are included.
+	 */
+	public static List<File> findEmailFiles(List<String> paths) {
+
+		List<File> files = new ArrayList<>();
+
+		for (String path : paths) {
+
+			File file = new File(path);
+			if (file.isDirectory()) {
+
+				File[] children = file.listFiles();
+				if (children != null) {
+
+					Arrays.sort(children);
+
+					for (File child : children) {
+						if (isEmailFile(child)) {
+							files.add(child);
+						}
+					}
+
+				}
+
+			} else if (isEmailFile(file)) {
+				files.add(file);
+			} else {
+				Communique.LOGGER.warn("Skipping, not an email file: " + path); //$NON-NLS-1$
+			}
+
+		}
+
+		return files;
+
+	}
+
+	private static boolean isEmailFile(File file) {
+		return file.isFile() && file.getName().toLowerCase().endsWith("." + XDoc.EMAIL_EXTENSION); //$NON-NLS-1$
+	}
+
+	/**
+	 * Entry point for batch mode, returns the number of emails that could not be sent.
+	 */
+	public static int run(List<String> paths, String password) {
+
+		List<File> files = findEmailFiles(paths);
+		if (files.size() == 0) {
+			Communique.LOGGER.warn("No email files found"); //$NON-NLS-1$
+			return 0;
+		}
+
+		BatchSender sender = create(password);
+		if (sender == null) {
+			return files.size();
+		}
+
+		return sender.send(files);
+
+	}
+
+	/**
+	 * Creates a sender for the selected account of the stored configuration, returns null if
+	 * there is no account with an smtp configuration. When password is null it is read from the
+	 * COMMUNIQUE_PASSWORD environment variable.
+	 */
+	public static BatchSender create(String password) {
+
+		Configuration configuration = CommuniqueUtils.loadConfiguration(Communique.CONF_PATH);
+
+		Account account = CommuniqueUtils.getSelectedAccount(configuration);
+		if (account == null || account.getSmtpConfiguration() == null) {
+			Communique.LOGGER.error("No account with smtp configuration found in: " + Communique.CONF_PATH); //$NON-NLS-1$
+			return null;
+		}
+
+		if (password == null) {
+			password = System.getenv(PASSWORD_ENVIRONMENT_VARIABLE);
+		}
+
+		return new BatchSender(configuration, account, password);
+
+	}
+
+}
@@ -0,0 +1,194 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads mail-merge rows from a CSV file (RFC 4180), the first record contains the column
+ * names. Quoted values may contain separators, escaped quotes ("") and line breaks.
+ */
+public class CsvDataSource implements MergeDataSource {
+
+	public static final char DEFAULT_SEPARATOR = ',';
+
+	private final BufferedReader reader;
+	private final char separator;
+	private final List<String> columns;
+	private final StringBuilder value = new StringBuilder();
+	private boolean endOfFile = false;
+
+	public CsvDataSource(File file) throws IOException {
+		this(file, DEFAULT_SEPARATOR);
+	}
+
+	public CsvDataSource(File file, char separator) throws IOException {
+		this(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), separator);
+	}
+
+	public CsvDataSource(Reader reader, char separator) throws IOException {
+
+		this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+		this.separator = separator;
+
+		List<String> header = readRecord();
+		if (header == null) {
+			columns = Collections.emptyList();
+		} else {
+
+			// Strip the byte order mark written by some spreadsheet applications
+			if (header.size() > 0 && header.get(0).length() > 0 && header.get(0).charAt(0) == '\uFEFF') {
+				header.set(0, header.get(0).substring(1));
+			}
+
+			for (int i = 0; i < header.size(); i++) {
+				header.set(i, header.get(i).trim());
+			}
+
+			columns = Collections.unmodifiableList(header);
+
+		}
+
+	}
+
+	@Override
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	@Override
+	public Map<String, String> next() throws IOException {
+
+		List<String> record;
+		while ((record = readRecord()) != null) {
+
+			// Skip empty lines
+			if (record.size() == 1 && record.get(0).length() == 0) {
+				continue;
+			}
+
+			Map<String, String> row = new LinkedHashMap<>();
+			for (int i = 0; i < columns.size(); i++) {
+				row.put(columns.get(i), i < record.size() ? record.get(i) : ""); //$NON-NLS-1$
+			}
+
+			return row;
+
+		}
+
+		return null;
+
+	}
+
+	private List<String> readRecord() throws IOException {
+
+		if (endOfFile) {
+			return null;
+		}
+
+		List<String> record = new ArrayList<>();
+		value.setLength(0);
+
+		boolean quoted = false;
+		boolean empty = true;
+
+		while (true) {
+
+			int c = reader.read();
+
+			if (c == -1) {
+
+				endOfFile = true;
+
+				if (empty && record.size() == 0) {
+					return null;
+				}
+
+				record.add(value.toString());
+
+				return record;
+
+			}
+
+			empty = false;
+
+			if (quoted) {
+
+				if (c == '"') {
+
+					reader.mark(1);
+					if (reader.read() == '"') {
+						value.append('"');
+					} else {
+						reader.reset();
+						quoted = false;
+					}
+
+				} else {
+					value.append((char) c);
+				}
+
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == separator) {
+				record.add(value.toString());
+				value.setLength(0);
+			} else if (c == '\n') {
+				record.add(value.toString());
+				return record;
+			} else if (c == '\r') {
+
+				reader.mark(1);
+				if (reader.read() != '\n') {
+					reader.reset();
+				}
+
+				record.add(value.toString());
+
+				return record;
+
+			} else {
+				value.append((char) c);
+			}
+
+		}
+
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
@@ -0,0 +1,38 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.batch;
+
+import java.util.Map;
+
+import org.glasspath.aerialist.IFieldContext;
+
+/**
+ * Creates the {@link IFieldContext} which is used to fill in the template fields for
+ * one row of a mail-merge. Like the field context passed to the Communique constructor
+ * this is supplied by the host application.
+ */
+public interface FieldContextFactory {
+
+	public IFieldContext createFieldContext(Map<String, String> row);
+
+}
@@ -0,0 +1,121 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.batch;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads mail-merge rows from a JSON-lines file, every line contains one JSON object.
+ * Nested values are passed on as their JSON text, empty lines are skipped.
+ */
+public class JsonLinesDataSource implements MergeDataSource {
+
+	private final BufferedReader reader;
+	private final ObjectMapper objectMapper = new ObjectMapper();
+	private final List<String> columns = new ArrayList<>();
+	private int lineNumber = 0;
+
+	public JsonLinesDataSource(File file) throws IOException {
+		this(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+	}
+
+	public JsonLinesDataSource(Reader reader) {
+		this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+	}
+
+	/**
+	 * Returns the keys seen so far, JSON-lines has no header so this grows while reading.
+	 */
+	@Override
+	public List<String> getColumns() {
+		return columns;
+	}
+
+	@Override
+	public Map<String, String> next() throws IOException {
+
+		String line;
+		while ((line = reader.readLine()) != null) {
+
+			lineNumber++;
+
+			if (line.trim().length() > 0) {
+
+				JsonNode node = objectMapper.readTree(line);
+				if (node == null || !node.isObject()) {
+					throw new IOException("Line " + lineNumber + " does not contain a JSON object"); //$NON-NLS-1$ //$NON-NLS-2$
+				}
+
+				Map<String, String> row = new LinkedHashMap<>();
+
+				Iterator<Entry<String, JsonNode>> fields = node.fields();
+				while (fields.hasNext()) {
+
+					Entry<String, JsonNode> field = fields.next();
+					JsonNode value = field.getValue();
+
+					if (value.isNull()) {
+						row.put(field.getKey(), ""); //$NON-NLS-1$
+					} else if (value.isValueNode()) {
+						row.put(field.getKey(), value.asText());
+					} else {
+						row.put(field.getKey(), value.toString());
+					}
+
+					if (!columns.contains(field.getKey())) {
+						columns.add(field.getKey());
+					}
+
+				}
+
+				return row;
+
+			}
+
+		}
+
+		return null;
+
+	}
+
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+
+}
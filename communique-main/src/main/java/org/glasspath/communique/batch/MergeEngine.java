@@ -0,0 +1,452 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glasspath.aerialist.Email;
+import org.glasspath.aerialist.XDoc;
+import org.glasspath.aerialist.media.BufferedImageMediaCache;
+import org.glasspath.aerialist.media.MediaCache;
+import org.glasspath.aerialist.reader.XDocReader;
+import org.glasspath.aerialist.template.TemplateParser;
+import org.glasspath.common.share.mail.MailUtils;
+import org.glasspath.common.share.mail.Mailable;
+import org.glasspath.common.xml.XmlUtils;
+import org.glasspath.communique.Communique;
+import org.glasspath.communique.CommuniqueUtils;
+
+import com.fasterxml.jackson.dataformat.xml.XmlMapper;
+
+/**
+ * Merges a template email with the rows of a {@link MergeDataSource} and sends the results
+ * through a {@link BatchSender}. Rows are read one at a time, rendering runs in parallel on
+ * all cores and at most a fixed window of rendered emails is kept in memory. Emails are
+ * handed to the sender in row order. Every row is sent to the address(es) in its recipient
+ * column, rows without a recipient are counted as failed.
+ */
+public class MergeEngine {
+
+	public static final String DEFAULT_RECIPIENT_COLUMN = "email"; //$NON-NLS-1$
+
+	private final BatchSender sender;
+	private final FieldContextFactory fieldContextFactory;
+	private final XmlMapper xmlMapper;
+	private String recipientColumn = DEFAULT_RECIPIENT_COLUMN;
+	private int renderThreads = Runtime.getRuntime().availableProcessors();
+	private int window = 2 * renderThreads;
+	private boolean windowSet = false;
+
+	public MergeEngine(BatchSender sender, FieldContextFactory fieldContextFactory) {
+		this.sender = sender;
+		this.fieldContextFactory = fieldContextFactory;
+		this.xmlMapper = XmlUtils.createXmlMapper();
+	}
+
+	public String getRecipientColumn() {
+		return recipientColumn;
+	}
+
+	public void setRecipientColumn(String recipientColumn) {
+		this.recipientColumn = recipientColumn;
+	}
+
+	public int getRenderThreads() {
+		return renderThreads;
+	}
+
+	/**
+	 * Unless a window was set explicitly the window follows the number of threads (two emails
+	 * per thread), an explicit window is raised to the number of threads so no thread is idle.
+	 */
+	public void setRenderThreads(int renderThreads) {
+		this.renderThreads = Math.max(1, renderThreads);
+		this.window = windowSet ? Math.max(window, this.renderThreads) : 2 * this.renderThreads;
+	}
+
+	public int getWindow() {
+		return window;
+	}
+
+	/**
+	 * The maximum number of emails that are being rendered or waiting to be sent.
+	 */
+	public void setWindow(int window) {
+		this.window = Math.max(renderThreads, window);
+		this.windowSet = true;
+	}
+
+	/**
+	 * Merges and sends all rows, returns the number of emails that could not be rendered or sent.
+	 * Emails which were queued in the outbox are not included, {@link BatchSender#finish()} returns
+	 * the ones which could not be sent in the end.
+	 */
+	public int merge(Email template, MediaCache<?> mediaCache, List<String> attachments, MergeDataSource dataSource) throws IOException, InterruptedException {
+
+		// Every row gets its own copy of the template because TemplateParser modifies the email
+		String templateXml = xmlMapper.writeValueAsString(template);
+
+		// Images are the same for every row, they are written to the temp dir only once
+		Mailable imagesMailable = CommuniqueUtils.createMailable(template, "", "", "", "", mediaCache != null ? mediaCache.getImageResources() : null, Collections.<File> emptyList(), false); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		Map<String, String> images = imagesMailable.getImages();
+
+		ExecutorService renderExecutor = Executors.newFixedThreadPool(renderThreads, new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "merge-render-" + count.incrementAndGet()); //$NON-NLS-1$
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		Deque<Future<Mailable>> rendering = new ArrayDeque<>();
+		Deque<Future<Boolean>> sending = new ArrayDeque<>();
+		Semaphore permits = new Semaphore(window);
+		AtomicInteger failed = new AtomicInteger();
+		int row = 0;
+		int handedOver = 0;
+
+		try {
+
+			Map<String, String> values = dataSource.next();
+
+			final TemplatePlan plan = values != null ? compile(templateXml, values) : null;
+
+			while (values != null) {
+
+				row++;
+
+				// When the window is full we wait for the oldest render and hand it over to the sender,
+				// or for the oldest send. This keeps memory use bounded regardless of the data set size
+				while (!permits.tryAcquire()) {
+					if (rendering.size() > 0) {
+						submit(rendering.pollFirst(), ++handedOver, sending, permits, failed);
+					} else if (sending.size() > 0) {
+						collect(sending, permits, failed, 1);
+					} else {
+						permits.acquire();
+						break;
+					}
+				}
+
+				final Map<String, String> rowValues = values;
+
+				rendering.add(renderExecutor.submit(new Callable<Mailable>() {
+
+					@Override
+					public Mailable call() throws Exception {
+
+						// Falling back to the recipient of the template would send all these rows to the same person
+						String to = rowValues.get(recipientColumn);
+						if (to == null || to.trim().length() == 0) {
+							throw new IOException("No recipient in column: " + recipientColumn); //$NON-NLS-1$
+						}
+
+						return render(plan != null && plan.accepts(rowValues) ? plan : null, templateXml, rowValues, images, attachments);
+
+					}
+				}));
+
+				// Hand over finished renders in row order
+				while (rendering.size() > 0 && rendering.peekFirst().isDone()) {
+					submit(rendering.pollFirst(), ++handedOver, sending, permits, failed);
+				}
+
+				collect(sending, permits, failed, 0);
+
+				values = dataSource.next();
+
+			}
+
+			while (rendering.size() > 0) {
+				submit(rendering.pollFirst(), ++handedOver, sending, permits, failed);
+			}
+
+			collect(sending, permits, failed, sending.size());
+
+		} finally {
+			renderExecutor.shutdownNow();
+		}
+
+		Communique.LOGGER.info("Merge finished, rows: " + row + ", failed: " + failed.get()); //$NON-NLS-1$ //$NON-NLS-2$
+
+		return failed.get();
+
+	}
+
+	/**
+	 * Compiles the template into a plan and verifies it against a full render of the
+	 * first row, returns null if every row has to be rendered in full. The plan is then
+	 * checked with every {@link TemplatePlan.Probe}, first for all fields at once and if
+	 * that doesn't match for each field separately. Fields which don't match are excluded
+	 * for values like the probe, such rows are rendered in full.
+	 */
+	private TemplatePlan compile(String templateXml, Map<String, String> firstRow) {
+
+		try {
+
+			TemplatePlan plan = TemplatePlan.compile(xmlMapper.readValue(templateXml, Email.class), fieldContextFactory);
+			if (plan != null) {
+
+				if (matches(plan, templateXml, firstRow)) {
+
+					for (TemplatePlan.Probe probe : TemplatePlan.Probe.values()) {
+
+						Map<String, String> probeRow = new HashMap<>(firstRow);
+						for (String field : plan.getFields()) {
+							probeRow.put(field, probe.getValue());
+						}
+
+						if (!matches(plan, templateXml, probeRow)) {
+
+							for (String field : plan.getFields()) {
+
+								probeRow = new HashMap<>(firstRow);
+								probeRow.put(field, probe.getValue());
+
+								if (!matches(plan, templateXml, probeRow)) {
+									plan.exclude(field, probe);
+									Communique.LOGGER.info("Compiled template does not match full render for field " + field + " with " + probe + " value, rendering such rows in full"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+								}
+
+							}
+
+						}
+
+					}
+
+					Communique.LOGGER.info("Using compiled template, fields: " + plan.getFields()); //$NON-NLS-1$
+					return plan;
+
+				} else {
+					Communique.LOGGER.info("Compiled template does not match full render, rendering every row"); //$NON-NLS-1$
+				}
+
+			}
+
+		} catch (Exception e) {
+			Communique.LOGGER.warn("Exception while compiling template, rendering every row", e); //$NON-NLS-1$
+		}
+
+		return null;
+
+	}
+
+	private boolean matches(TemplatePlan plan, String templateXml, Map<String, String> values) throws IOException {
+
+		Mailable compiled = render(plan, templateXml, values, null, null);
+		Mailable rendered = render(null, templateXml, values, null, null);
+
+		return Objects.equals(compiled.getHtml(), rendered.getHtml())
+				&& Objects.equals(compiled.getText(), rendered.getText())
+				&& Objects.equals(compiled.getSubject(), rendered.getSubject())
+				&& Objects.equals(compiled.getTo(), rendered.getTo())
+				&& Objects.equals(compiled.getCc(), rendered.getCc())
+				&& Objects.equals(compiled.getBcc(), rendered.getBcc());
+
+	}
+
+	private Mailable render(TemplatePlan plan, String templateXml, Map<String, String> values, Map<String, String> images, List<String> attachments) throws IOException {
+
+		Mailable mailable;
+
+		String to = values.get(recipientColumn);
+
+		if (plan != null) {
+
+			mailable = plan.createMailable(values);
+
+			if (to != null && to.trim().length() > 0) {
+				mailable.setTo(MailUtils.parseRecipients(to));
+			}
+
+		} else {
+
+			Email email = xmlMapper.readValue(templateXml, Email.class);
+
+			TemplateParser templateParser = new TemplateParser();
+			templateParser.parseTemplate(email, fieldContextFactory.createFieldContext(values));
+
+			if (to == null || to.trim().length() == 0) {
+				to = email.getTo();
+			}
+
+			String subject = email.getSubjectTextBox() != null ? email.getSubjectTextBox().getText() : ""; //$NON-NLS-1$
+
+			mailable = CommuniqueUtils.createMailable(email, to, email.getCc(), email.getBcc(), subject, null, null);
+
+		}
+
+		if (images != null) {
+			mailable.setImages(new HashMap<>(images));
+		}
+
+		if (attachments != null) {
+			for (String attachment : attachments) {
+				mailable.addAttachment(attachment);
+			}
+		}
+
+		return mailable;
+
+	}
+
+	private void submit(Future<Mailable> rendered, int rowNumber, Deque<Future<Boolean>> sending, Semaphore permits, AtomicInteger failed) throws InterruptedException {
+
+		final String name = "row " + rowNumber; //$NON-NLS-1$
+
+		final Mailable mailable;
+		try {
+			mailable = rendered.get();
+		} catch (ExecutionException e) {
+			Communique.LOGGER.error("Exception while rendering " + name, e.getCause()); //$NON-NLS-1$
+			failed.incrementAndGet();
+			permits.release();
+			return;
+		}
+
+		// The permit is released by collect(), also when the send executor cancels the task before it runs
+		sending.add(sender.getSendExecutor().submit(sender.getAccount(), new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				return sender.send(mailable, name);
+			}
+		}));
+
+	}
+
+	/**
+	 * Collects the finished sends in row order and releases their permits, waits for at least
+	 * the given number of sends.
+	 */
+	private void collect(Deque<Future<Boolean>> sending, Semaphore permits, AtomicInteger failed, int wait) throws InterruptedException {
+
+		int collected = 0;
+
+		while (sending.size() > 0 && (collected < wait || sending.peekFirst().isDone())) {
+
+			try {
+				if (!sending.pollFirst().get()) {
+					failed.incrementAndGet();
+				}
+			} catch (ExecutionException | CancellationException e) {
+				failed.incrementAndGet();
+			} finally {
+				permits.release();
+			}
+
+			collected++;
+
+		}
+
+	}
+
+	/**
+	 * Entry point for merge mode, merges the template with every row of the data file (.csv or
+	 * JSON lines) and sends the results. Returns the number of emails that could not be sent.
+	 */
+	public static int run(String templatePath, String dataPath, String recipientColumn, FieldContextFactory fieldContextFactory, String password) {
+
+		BufferedImageMediaCache mediaCache = new BufferedImageMediaCache();
+
+		Email template = null;
+		try {
+			XDoc xDoc = XDocReader.read(templatePath, mediaCache);
+			if (xDoc != null && xDoc.getContent() != null && xDoc.getContent().getRoot() instanceof Email) {
+				template = (Email) xDoc.getContent().getRoot();
+			}
+		} catch (Exception e) {
+			Communique.LOGGER.error("Exception while reading: " + templatePath, e); //$NON-NLS-1$
+		}
+
+		if (template == null) {
+			Communique.LOGGER.error("File does not contain an email: " + templatePath); //$NON-NLS-1$
+			return 1;
+		}
+
+		BatchSender sender = BatchSender.create(password);
+		if (sender == null) {
+			return 1;
+		}
+
+		int failed = 0;
+
+		try (MergeDataSource dataSource = openDataSource(new File(dataPath))) {
+
+			sender.resume();
+
+			MergeEngine mergeEngine = new MergeEngine(sender, fieldContextFactory);
+			if (recipientColumn != null) {
+				mergeEngine.setRecipientColumn(recipientColumn);
+			}
+
+			failed = mergeEngine.merge(template, mediaCache, Collections.emptyList(), dataSource);
+			failed += sender.finish();
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			failed = Math.max(1, failed);
+		} catch (Exception e) {
+			Communique.LOGGER.error("Exception while merging: " + dataPath, e); //$NON-NLS-1$
+			failed = Math.max(1, failed);
+		} finally {
+			sender.close();
+		}
+
+		return failed;
+
+	}
+
+	public static MergeDataSource openDataSource(File file) throws IOException {
+
+		String name = file.getName().toLowerCase();
+		if (name.endsWith(".jsonl") || name.endsWith(".ndjson") || name.endsWith(".json")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			return new JsonLinesDataSource(file);
+		} else {
+			return new CsvDataSource(file);
+		}
+
+	}
+
+}
@@ -0,0 +1,436 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.batch;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.glasspath.aerialist.Email;
+import org.glasspath.aerialist.HtmlExporter;
+import org.glasspath.aerialist.template.TemplateParser;
+import org.glasspath.common.share.mail.MailUtils;
+import org.glasspath.common.share.mail.Mailable;
+
+/**
+ * A template email which has been analysed once so that it can be rendered for many rows
+ * by concatenating static fragments and field values. The plan is compiled by parsing the
+ * template with a row that answers every lookup with a unique marker, the markers are then
+ * located in the exported HTML, plain text, subject and recipients.
+ * 
+ * This only works for templates in which fields are plain value substitutions, the merge
+ * engine therefore verifies the plan against full renders of the first row and of the
+ * {@link Probe} values. Fields for which a probe does not match are excluded for values
+ * like it, rows containing such a value are rendered in full.
+ */
+public class TemplatePlan {
+
+	private static final char MARKER_START = '\uE000';
+	private static final char MARKER_END = '\uE001';
+
+	/**
+	 * Values for which the exporter may produce something else than the escaped value, or
+	 * which a template may use in a condition.
+	 */
+	public enum Probe {
+
+		EMPTY(""), //$NON-NLS-1$
+		WHITESPACE(" x  y\t"), //$NON-NLS-1$
+		APOSTROPHE("O'Brien"), //$NON-NLS-1$
+		QUOTE("\"x\""), //$NON-NLS-1$
+		AMPERSAND("x & y &amp;"), //$NON-NLS-1$
+		ANGLE_BRACKETS("<b>x</b> > y"), //$NON-NLS-1$
+		NEW_LINE("x\ny\r\nz"), //$NON-NLS-1$
+		NON_ASCII("Zo\u00EB \u20AC"); //$NON-NLS-1$
+
+		private final String value;
+
+		private Probe(String value) {
+			this.value = value;
+		}
+
+		public String getValue() {
+			return value;
+		}
+
+		/**
+		 * Returns true if the given value has the property which this probe checks.
+		 */
+		public boolean matches(String value) {
+
+			switch (this) {
+			case EMPTY:
+				return value.trim().length() == 0;
+			case WHITESPACE:
+				return value.length() > 0 && (Character.isWhitespace(value.charAt(0)) || Character.isWhitespace(value.charAt(value.length() - 1)) || value.indexOf("  ") >= 0 || value.indexOf('\t') >= 0); //$NON-NLS-1$
+			case APOSTROPHE:
+				return value.indexOf('\'') >= 0;
+			case QUOTE:
+				return value.indexOf('"') >= 0;
+			case AMPERSAND:
+				return value.indexOf('&') >= 0;
+			case ANGLE_BRACKETS:
+				return value.indexOf('<') >= 0 || value.indexOf('>') >= 0;
+			case NEW_LINE:
+				return value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0;
+			case NON_ASCII:
+				for (int i = 0; i < value.length(); i++) {
+					if (value.charAt(i) > 127) {
+						return true;
+					}
+				}
+				return false;
+			default:
+				return true;
+			}
+
+		}
+	}
+
+	private final List<String> fields;
+	private final List<Set<Probe>> excluded;
+	private final Fragments html;
+	private final Fragments text;
+	private final Fragments subject;
+	private final Fragments to;
+	private final Fragments cc;
+	private final Fragments bcc;
+
+	TemplatePlan(List<String> fields, Fragments html, Fragments text, Fragments subject, Fragments to, Fragments cc, Fragments bcc) {
+		this.fields = fields;
+		this.excluded = new ArrayList<>(fields.size());
+		for (int i = 0; i < fields.size(); i++) {
+			excluded.add(EnumSet.noneOf(Probe.class));
+		}
+		this.html = html;
+		this.text = text;
+		this.subject = subject;
+		this.to = to;
+		this.cc = cc;
+		this.bcc = bcc;
+	}
+
+	public List<String> getFields() {
+		return fields;
+	}
+
+	/**
+	 * Excludes values matching the given probe for the given field, rows with such a value
+	 * are not accepted anymore.
+	 */
+	void exclude(String field, Probe probe) {
+		int index = fields.indexOf(field);
+		if (index >= 0) {
+			excluded.get(index).add(probe);
+		}
+	}
+
+	public Set<Probe> getExcluded(String field) {
+		int index = fields.indexOf(field);
+		return index >= 0 ? Collections.unmodifiableSet(excluded.get(index)) : Collections.<Probe> emptySet();
+	}
+
+	/**
+	 * Returns false if the given row has to be rendered in full.
+	 */
+	public boolean accepts(Map<String, String> values) {
+
+		for (int i = 0; i < fields.size(); i++) {
+
+			Set<Probe> probes = excluded.get(i);
+			if (probes.size() > 0) {
+
+				String value = values.get(fields.get(i));
+				if (value == null) {
+					value = ""; //$NON-NLS-1$
+				}
+
+				for (Probe probe : probes) {
+					if (probe.matches(value)) {
+						return false;
+					}
+				}
+
+			}
+
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Creates a mailable for the given row, images and attachments are not included.
+	 */
+	public Mailable createMailable(Map<String, String> values) {
+
+		String[] resolved = new String[fields.size()];
+		String[] escaped = new String[fields.size()];
+
+		for (int i = 0; i < resolved.length; i++) {
+			String value = values.get(fields.get(i));
+			resolved[i] = value != null ? value : ""; //$NON-NLS-1$
+		}
+
+		Mailable mailable = new Mailable();
+		mailable.setTo(MailUtils.parseRecipients(to.render(resolved, null)));
+		mailable.setCc(MailUtils.parseRecipients(cc.render(resolved, null)));
+		mailable.setBcc(MailUtils.parseRecipients(bcc.render(resolved, null)));
+		mailable.setSubject(subject.render(resolved, null));
+		mailable.setText(text.render(resolved, null));
+		mailable.setHtml(html.render(resolved, escaped));
+
+		return mailable;
+
+	}
+
+	/**
+	 * Compiles a plan for the given template (which is modified), returns null if no fields
+	 * could be located, in that case every row has to be rendered in full.
+	 */
+	public static TemplatePlan compile(Email template, FieldContextFactory fieldContextFactory) {
+
+		MarkerRow markerRow = new MarkerRow();
+
+		TemplateParser templateParser = new TemplateParser();
+		templateParser.parseTemplate(template, fieldContextFactory.createFieldContext(markerRow));
+
+		if (markerRow.fields.size() == 0) {
+			return null;
+		}
+
+		HtmlExporter htmlExporter = new HtmlExporter();
+		htmlExporter.parse(template, "cid:"); //$NON-NLS-1$
+
+		String subject = template.getSubjectTextBox() != null ? template.getSubjectTextBox().getText() : ""; //$NON-NLS-1$
+
+		Fragments html = Fragments.split(htmlExporter.getHtml(), markerRow.fields.size());
+		Fragments text = Fragments.split(htmlExporter.getPlainText(), markerRow.fields.size());
+		Fragments subjectFragments = Fragments.split(subject, markerRow.fields.size());
+		Fragments to = Fragments.split(template.getTo(), markerRow.fields.size());
+		Fragments cc = Fragments.split(template.getCc(), markerRow.fields.size());
+		Fragments bcc = Fragments.split(template.getBcc(), markerRow.fields.size());
+
+		if (html == null || text == null || subjectFragments == null || to == null || cc == null || bcc == null) {
+			return null;
+		}
+
+		return new TemplatePlan(Collections.unmodifiableList(markerRow.fields), html, text, subjectFragments, to, cc, bcc);
+
+	}
+
+	static String marker(int index) {
+		return MARKER_START + Integer.toString(index) + MARKER_END;
+	}
+
+	public static String escapeHtml(String value) {
+
+		StringBuilder builder = null;
+
+		for (int i = 0; i < value.length(); i++) {
+
+			char c = value.charAt(i);
+
+			String replacement;
+			switch (c) {
+			case '&':
+				replacement = "&amp;"; //$NON-NLS-1$
+				break;
+			case '<':
+				replacement = "&lt;"; //$NON-NLS-1$
+				break;
+			case '>':
+				replacement = "&gt;"; //$NON-NLS-1$
+				break;
+			case '"':
+				replacement = "&quot;"; //$NON-NLS-1$
+				break;
+			default:
+				replacement = null;
+				break;
+			}
+
+			if (replacement != null) {
+				if (builder == null) {
+					builder = new StringBuilder(value.length() + 16);
+					builder.append(value, 0, i);
+				}
+				builder.append(replacement);
+			} else if (builder != null) {
+				builder.append(c);
+			}
+
+		}
+
+		return builder != null ? builder.toString() : value;
+
+	}
+
+	/**
+	 * Answers every lookup with a marker containing the index of the requested field.
+	 */
+	private static class MarkerRow extends AbstractMap<String, String> {
+
+		private final List<String> fields = new ArrayList<>();
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof String;
+		}
+
+		@Override
+		public String get(Object key) {
+
+			if (!(key instanceof String)) {
+				return null;
+			}
+
+			int index = fields.indexOf(key);
+			if (index < 0) {
+				index = fields.size();
+				fields.add((String) key);
+			}
+
+			return marker(index);
+
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet() {
+			return Collections.emptySet();
+		}
+	}
+
+	/**
+	 * Static text interleaved with field indices, statics has one element more than indices.
+	 */
+	static class Fragments {
+
+		private final String[] statics;
+		private final int[] indices;
+		private final int staticLength;
+
+		private Fragments(String[] statics, int[] indices) {
+
+			this.statics = statics;
+			this.indices = indices;
+
+			int length = 0;
+			for (String s : statics) {
+				length += s.length();
+			}
+			this.staticLength = length;
+
+		}
+
+		String render(String[] values, String[] escaped) {
+
+			if (indices.length == 0) {
+				return statics[0];
+			}
+
+			StringBuilder builder = new StringBuilder(staticLength + 32 * indices.length);
+			builder.append(statics[0]);
+
+			for (int i = 0; i < indices.length; i++) {
+
+				int index = indices[i];
+
+				if (escaped != null) {
+					if (escaped[index] == null) {
+						escaped[index] = escapeHtml(values[index]);
+					}
+					builder.append(escaped[index]);
+				} else {
+					builder.append(values[index]);
+				}
+
+				builder.append(statics[i + 1]);
+
+			}
+
+			return builder.toString();
+
+		}
+
+		/**
+		 * Returns null if a marker was damaged, for example because the exporter escaped it.
+		 */
+		static Fragments split(String s, int fieldCount) {
+
+			if (s == null) {
+				s = ""; //$NON-NLS-1$
+			}
+
+			List<String> statics = new ArrayList<>();
+			List<Integer> indices = new ArrayList<>();
+
+			int from = 0;
+			int start;
+			while ((start = s.indexOf(MARKER_START, from)) >= 0) {
+
+				int end = s.indexOf(MARKER_END, start);
+				if (end < 0) {
+					return null;
+				}
+
+				int index;
+				try {
+					index = Integer.parseInt(s.substring(start + 1, end));
+				} catch (NumberFormatException e) {
+					return null;
+				}
+
+				if (index < 0 || index >= fieldCount) {
+					return null;
+				}
+
+				statics.add(s.substring(from, start));
+				indices.add(index);
+
+				from = end + 1;
+
+			}
+
+			if (s.indexOf(MARKER_END, from) >= 0) {
+				return null;
+			}
+
+			statics.add(s.substring(from));
+
+			int[] indexArray = new int[indices.size()];
+			for (int i = 0; i < indexArray.length; i++) {
+				indexArray[i] = indices.get(i);
+			}
+
+			return new Fragments(statics.toArray(new String[0]), indexArray);
+
+		}
+
+	}
+
+}
@@ -0,0 +1,92 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.editor;
+
+import java.awt.Font;
+import java.awt.font.TextAttribute;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches derived fonts for the editor, fonts are keyed by family, weight, size and style. The
+ * cache is bounded and evicts the least recently used fonts.
+ */
+public class EditorFontCache {
+
+	public static final int MAX_FONTS = 256;
+
+	private static EditorFontCache instance = null;
+
+	private final Map<String, Font> fonts = new LinkedHashMap<String, Font>(16, 0.75F, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Font> eldest) {
+			return size() > MAX_FONTS;
+		}
+	};
+
+	public static synchronized EditorFontCache getInstance() {
+		if (instance == null) {
+			instance = new EditorFontCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the font for the given family, weight (see {@link TextAttribute#WEIGHT}), size and
+	 * style ({@link Font#PLAIN}, {@link Font#BOLD} and/or {@link Font#ITALIC}).
+	 */
+	public synchronized Font getFont(String family, float weight, float size, int style) {
+
+		String key = family + ":" + weight + ":" + size + ":" + style; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		Font font = fonts.get(key);
+		if (font == null) {
+
+			if ((style & Font.BOLD) != 0 && weight < TextAttribute.WEIGHT_BOLD) {
+				weight = TextAttribute.WEIGHT_BOLD;
+			}
+
+			Map<TextAttribute, Object> attributes = new HashMap<>();
+			attributes.put(TextAttribute.FAMILY, family);
+			attributes.put(TextAttribute.WEIGHT, weight);
+			attributes.put(TextAttribute.SIZE, size);
+			attributes.put(TextAttribute.POSTURE, (style & Font.ITALIC) != 0 ? TextAttribute.POSTURE_OBLIQUE : TextAttribute.POSTURE_REGULAR);
+
+			font = new Font(attributes);
+			fonts.put(key, font);
+
+		}
+
+		return font;
+
+	}
+
+	public synchronized void clear() {
+		fonts.clear();
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.editor;
+
+import java.awt.Font;
+import java.awt.font.TextAttribute;
+import java.util.Locale;
+
+import org.glasspath.aerialist.text.font.FontCache;
+import org.glasspath.aerialist.text.font.FontWeight;
+
+/**
+ * The aerialist {@link FontCache} of the editor, fonts are derived and cached by
+ * {@link EditorFontCache}.
+ */
+public class EditorFontCacheAdapter implements FontCache<Font> {
+
+	private final EditorFontCache fontCache;
+
+	public EditorFontCacheAdapter(EditorFontCache fontCache) {
+		this.fontCache = fontCache;
+	}
+
+	@Override
+	public Font getFont(String name, FontWeight weight, float size, boolean bold, boolean italic) {
+
+		int style = Font.PLAIN;
+		if (bold) {
+			style |= Font.BOLD;
+		}
+		if (italic) {
+			style |= Font.ITALIC;
+		}
+
+		return fontCache.getFont(getFamily(name), getWeight(weight), size, style);
+
+	}
+
+	@Override
+	public Font getFont(String name, int style, float size) {
+		return fontCache.getFont(getFamily(name), TextAttribute.WEIGHT_REGULAR, size, style);
+	}
+
+	private static String getFamily(String name) {
+		return name != null ? name : Font.SANS_SERIF;
+	}
+
+	private static float getWeight(FontWeight weight) {
+
+		if (weight == null) {
+			return TextAttribute.WEIGHT_REGULAR;
+		}
+
+		String s = weight.name().toUpperCase(Locale.ENGLISH).replace("_", ""); //$NON-NLS-1$ //$NON-NLS-2$
+
+		if (s.contains("THIN") || s.contains("EXTRALIGHT") || s.contains("ULTRALIGHT")) { //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			return TextAttribute.WEIGHT_EXTRA_LIGHT;
+		} else if (s.contains("LIGHT")) { //$NON-NLS-1$
+			return TextAttribute.WEIGHT_LIGHT;
+		} else if (s.contains("MEDIUM")) { //$NON-NLS-1$
+			return TextAttribute.WEIGHT_MEDIUM;
+		} else if (s.contains("SEMIBOLD") || s.contains("DEMIBOLD")) { //$NON-NLS-1$ //$NON-NLS-2$
+			return TextAttribute.WEIGHT_SEMIBOLD;
+		} else if (s.contains("EXTRABOLD") || s.contains("ULTRABOLD")) { //$NON-NLS-1$ //$NON-NLS-2$
+			return TextAttribute.WEIGHT_EXTRABOLD;
+		} else if (s.contains("BLACK") || s.contains("HEAVY")) { //$NON-NLS-1$ //$NON-NLS-2$
+			return TextAttribute.WEIGHT_ULTRABOLD;
+		} else if (s.contains("BOLD")) { //$NON-NLS-1$
+			return TextAttribute.WEIGHT_BOLD;
+		}
+
+		return TextAttribute.WEIGHT_REGULAR;
+
+	}
+
+}
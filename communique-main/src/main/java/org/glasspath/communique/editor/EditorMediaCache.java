@@ -0,0 +1,91 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.editor;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.image.BufferedImage;
+
+import org.glasspath.aerialist.media.BufferedImageMediaCache;
+import org.glasspath.communique.media.ScaledImageCache;
+
+/**
+ * The media cache of the editor, images which are wider than the editor can show are resolved to
+ * a variant from the {@link ScaledImageCache} with the width of the editor on the device. The
+ * views then only scale that variant instead of the full resolution image. While a variant is
+ * being built the image itself is returned, the repaint callback is invoked when it is ready.
+ */
+public class EditorMediaCache extends BufferedImageMediaCache {
+
+	private int maxWidth = 0;
+	private GraphicsConfiguration graphicsConfiguration = null;
+	private Runnable repaintCallback = null;
+
+	public EditorMediaCache() {
+
+	}
+
+	public int getMaxWidth() {
+		return maxWidth;
+	}
+
+	/**
+	 * Sets the maximum width (in device pixels) of the images, 0 disables the variants.
+	 */
+	public void setMaxWidth(int maxWidth) {
+		this.maxWidth = maxWidth;
+	}
+
+	public GraphicsConfiguration getGraphicsConfiguration() {
+		return graphicsConfiguration;
+	}
+
+	public void setGraphicsConfiguration(GraphicsConfiguration graphicsConfiguration) {
+		this.graphicsConfiguration = graphicsConfiguration;
+	}
+
+	public Runnable getRepaintCallback() {
+		return repaintCallback;
+	}
+
+	public void setRepaintCallback(Runnable repaintCallback) {
+		this.repaintCallback = repaintCallback;
+	}
+
+	@Override
+	public BufferedImage getImage(String key) {
+
+		BufferedImage image = super.getImage(key);
+
+		if (image == null || maxWidth <= 0 || image.getWidth() <= maxWidth) {
+			return image;
+		}
+
+		int height = Math.max(1, (int) Math.round((double) image.getHeight() * maxWidth / image.getWidth()));
+
+		BufferedImage scaledImage = ScaledImageCache.getInstance().getScaledImage(image, maxWidth, height, graphicsConfiguration, repaintCallback);
+
+		return scaledImage != null ? scaledImage : image;
+
+	}
+
+}
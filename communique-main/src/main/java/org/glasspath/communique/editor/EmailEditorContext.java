@@ -31,6 +31,7 @@ import org.glasspath.communique.Communique;
 public abstract class EmailEditorContext extends EditorContext<EmailEditorPanel> {
 
 	private boolean sendButtonVisible = true;
+	private boolean sendIndividually = false;
 	private List<String> to = null;
 	private List<String> cc = null;
 	private List<String> bcc = null;
@@ -48,6 +49,17 @@ public abstract class EmailEditorContext extends EditorContext<EmailEditorPanel>
 		this.sendButtonVisible = sendButtonVisible;
 	}
 
+	public boolean isSendIndividually() {
+		return sendIndividually;
+	}
+
+	/**
+	 * When enabled every recipient receives a separate message with only their own address in it.
+	 */
+	public void setSendIndividually(boolean sendIndividually) {
+		this.sendIndividually = sendIndividually;
+	}
+
 	public List<String> getTo() {
 		return to;
 	}
@@ -33,7 +33,10 @@ import java.awt.Rectangle;
 import java.awt.event.FocusEvent;
 import java.awt.event.MouseEvent;
 import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 
 import javax.swing.BorderFactory;
 import javax.swing.JMenu;
@@ -61,14 +64,21 @@ import org.glasspath.common.swing.color.ColorUtils;
 import org.glasspath.common.swing.selection.SelectionListener;
 import org.glasspath.common.swing.theme.Theme;
 import org.glasspath.communique.Communique;
+import org.glasspath.communique.editor.TileCache.ContentPainter;
+import org.glasspath.communique.media.ImageOptimizer;
 
 public class EmailEditorPanel extends EditorPanel<EmailEditorPanel> {
 
+	// Space around views in which selection handles and outlines are drawn
+	public static final int SELECTION_MARGIN = 10;
+
 	private final Communique context;
 	protected final EmailEditorView view;
 	protected final MouseOperationHandler<EmailEditorPanel> mouseOperationHandler;
 	protected final EditorEmailContainer emailContainer;
 	private final JScrollPane mainScrollPane;
+	private final RefreshScheduler refreshScheduler;
+	private final List<Rectangle> selectionBounds = new ArrayList<>();
 
 	private boolean gridEnabled = true;
 	private int gridSpacing = 10;
@@ -107,16 +117,21 @@ public class EmailEditorPanel extends EditorPanel<EmailEditorPanel> {
 		};
 
 		emailContainer = new EditorEmailContainer();
+		refreshScheduler = new RefreshScheduler(emailContainer);
 
 		mainScrollPane = new JScrollPane(emailContainer);
 		mainScrollPane.setBorder(BorderFactory.createEmptyBorder());
 		mainScrollPane.getVerticalScrollBar().setUnitIncrement(25);
 		add(mainScrollPane, BorderLayout.CENTER);
 
+		// Off by default, mainly useful on machines (like terminal servers) where painting is slow
+		emailContainer.getTileCache().setEnabled(context.getConfiguration().isTileCacheEnabled());
+
 		selection.addSelectionListener(new SelectionListener() {
 
 			@Override
 			public void selectionChanged() {
+				invalidateSelectionTiles();
 				context.getMainPanel().updateEditMenu();
 				context.getTextFormatTools().textSelectionChanged();
 			}
@@ -148,6 +163,13 @@ public class EmailEditorPanel extends EditorPanel<EmailEditorPanel> {
 	public void undoableEditHappened(UndoableEdit edit) {
 		super.undoableEditHappened(edit);
 		context.setContentChanged(true);
+		context.getPreRenderer().invalidate();
+
+		// Inserted images are optimized in the background so sending doesn't have to wait for it
+		if (getMediaCache() != null) {
+			ImageOptimizer.getInstance().prepare(getMediaCache().getImageResources());
+		}
+
 	}
 
 	public EditorEmailContainer getEmailContainer() {
@@ -173,6 +195,9 @@ public class EmailEditorPanel extends EditorPanel<EmailEditorPanel> {
 	@Override
 	public void handleMouseEvent(MouseEvent e) {
 
+		// Mouse operations hit-test and drag views by their bounds, these must be current
+		refreshScheduler.flushPending();
+
 		Component component = e.getComponent();
 		if (e.getID() == MouseEvent.MOUSE_PRESSED && SwingUtilities.isRightMouseButton(e) && e.getComponent() != null) {
 			showMenu(component, e.getX(), e.getY());
@@ -185,6 +210,7 @@ public class EmailEditorPanel extends EditorPanel<EmailEditorPanel> {
 
 	@Override
 	public void handleMouseMotionEvent(MouseEvent e) {
+		refreshScheduler.flushPending();
 		mouseOperationHandler.processMouseMotionEvent(e);
 	}
 
@@ -196,18 +222,74 @@ public class EmailEditorPanel extends EditorPanel<EmailEditorPanel> {
 	@Override
 	public void refresh(Component component, Map<Component, Rectangle> anchoredElementBounds, boolean resetYPolicy, boolean revalidateScrollPane) {
 
-		if (component != null) {
+		// Requests are coalesced and handled once per event-loop tick, typing and undo
+		// can otherwise lay out and repaint the email many times per frame
+		refreshScheduler.refresh(component, anchoredElementBounds);
+		invalidateTiles(component, anchoredElementBounds);
 
-			component.invalidate();
-			component.validate();
-			component.repaint();
+		// Callers which reset the y-policy or revalidate the scroll pane read the new layout
+		// (preferred size, view bounds) right after this call, they get it immediately
+		if (resetYPolicy || revalidateScrollPane) {
+			refreshScheduler.flush();
+		}
 
-		} else {
+	}
+
+	public RefreshScheduler getRefreshScheduler() {
+		return refreshScheduler;
+	}
+
+	/**
+	 * Drops the tiles from the top of the refreshed component (or anchored element) down, a
+	 * change in height moves everything below it.
+	 */
+	private void invalidateTiles(Component component, Map<Component, Rectangle> anchoredElementBounds) {
+
+		TileCache tileCache = emailContainer.getTileCache();
+
+		if (component == null || component == emailContainer || component.getParent() == null) {
+			tileCache.clear();
+			return;
+		}
+
+		int top = SwingUtilities.convertRectangle(component.getParent(), component.getBounds(), emailContainer).y;
+
+		if (anchoredElementBounds != null) {
+			for (Entry<Component, Rectangle> entry : anchoredElementBounds.entrySet()) {
+				if (entry.getKey() != null && entry.getKey().getParent() != null && entry.getValue() != null) {
+					top = Math.min(top, SwingUtilities.convertRectangle(entry.getKey().getParent(), entry.getValue(), emailContainer).y);
+				}
+			}
+		}
+
+		top = Math.max(0, top - SELECTION_MARGIN);
+
+		tileCache.invalidate(new Rectangle(0, top, Integer.MAX_VALUE, Integer.MAX_VALUE - top));
+
+	}
 
-			emailContainer.invalidate();
-			emailContainer.validate();
-			emailContainer.repaint();
+	/**
+	 * Drops and repaints the tiles under the previous and the new selection, selected views
+	 * are decorated by {@link EmailEditorView#drawEditorForeground}.
+	 */
+	private void invalidateSelectionTiles() {
+
+		List<Rectangle> previousBounds = new ArrayList<>(selectionBounds);
+		selectionBounds.clear();
+
+		for (int i = 0; i < selection.size(); i++) {
+			Component component = selection.get(i);
+			if (component.getParent() != null) {
+				Rectangle bounds = SwingUtilities.convertRectangle(component.getParent(), component.getBounds(), emailContainer);
+				bounds.grow(SELECTION_MARGIN, SELECTION_MARGIN);
+				selectionBounds.add(bounds);
+			}
+		}
 
+		previousBounds.addAll(selectionBounds);
+		for (Rectangle bounds : previousBounds) {
+			emailContainer.getTileCache().invalidate(bounds);
+			emailContainer.repaint(bounds);
 		}
 
 	}
@@ -281,9 +363,28 @@ public class EmailEditorPanel extends EditorPanel<EmailEditorPanel> {
 
 	public class EditorEmailContainer extends EmailContainer {
 
+		private final TileCache tileCache;
+		private final FontCache<Font> fontCache = new EditorFontCacheAdapter(EditorFontCache.getInstance());
+		private final Runnable imageRepaintCallback = new Runnable() {
+
+			@Override
+			public void run() {
+				tileCache.clear();
+				repaint();
+			}
+		};
+
 		public EditorEmailContainer() {
 			super(Theme.isDark() ? ColorUtils.DARK_31 : Color.white);
 
+			tileCache = new TileCache(this, new ContentPainter() {
+
+				@Override
+				public void paintContent(Graphics2D g2d) {
+					EditorEmailContainer.this.paintContent(g2d);
+				}
+			});
+
 			ISwingViewContext.installSelectionHandler(this, this);
 
 			// TODO?
@@ -293,7 +394,7 @@ public class EmailEditorPanel extends EditorPanel<EmailEditorPanel> {
 
 		@Override
 		public FontCache<Font> getFontCache() {
-			return null;
+			return fontCache;
 		}
 
 		@Override
@@ -389,19 +490,43 @@ public class EmailEditorPanel extends EditorPanel<EmailEditorPanel> {
 			return ISwingViewContext.VIEW_PAINT_FLAG_DECORATE_FIELDS;
 		}
 
+		public TileCache getTileCache() {
+			return tileCache;
+		}
+
 		@Override
 		public void paint(Graphics g) {
+			tileCache.paint(g);
+		}
 
-			Graphics2D g2d = (Graphics2D) g;
+		private void paintContent(Graphics2D g2d) {
 
 			boolean editable = ISwingViewContext.getContainerPaintFlag(this, ISwingViewContext.CONTAINER_PAINT_FLAG_EDITABLE);
 
 			view.drawEditorBackground(g2d, this, editable);
-			super.paint(g);
+
+			updateMediaCache(g2d);
+			super.paint(g2d);
+
 			view.drawEditorForeground(g2d, this, editable);
 
 		}
 
+		private void updateMediaCache(Graphics2D g2d) {
+
+			MediaCache<BufferedImage> mediaCache = getMediaCache();
+			if (mediaCache instanceof EditorMediaCache) {
+
+				// Images are never shown wider than the container, the transform adds the scale of HiDPI screens
+				EditorMediaCache editorMediaCache = (EditorMediaCache) mediaCache;
+				editorMediaCache.setMaxWidth((int) Math.ceil(getWidth() * g2d.getTransform().getScaleX()));
+				editorMediaCache.setGraphicsConfiguration(getGraphicsConfiguration());
+				editorMediaCache.setRepaintCallback(imageRepaintCallback);
+
+			}
+
+		}
+
 	}
 
 }
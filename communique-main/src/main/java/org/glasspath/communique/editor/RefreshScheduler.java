@@ -0,0 +1,179 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.editor;
+
+import java.awt.Component;
+import java.awt.Container;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import javax.swing.JComponent;
+import javax.swing.SwingUtilities;
+
+/**
+ * Collects refresh requests for the email container and handles them once per event-loop tick:
+ * dirty components are invalidated, the container is validated once and only the bounds of the
+ * dirty components (clipped to the visible area) are repainted. Must be used on the EDT.
+ */
+public class RefreshScheduler {
+
+	private final JComponent container;
+	private final Set<Component> dirtyComponents = new LinkedHashSet<>();
+	private final List<Rectangle> dirtyRegions = new ArrayList<>();
+	private boolean containerDirty = false;
+	private boolean scheduled = false;
+
+	public RefreshScheduler(JComponent container) {
+		this.container = container;
+	}
+
+	/**
+	 * Marks the component as dirty, null marks the whole container as dirty. The anchored element
+	 * bounds are the bounds (in parent coordinates) the elements had before the change, these
+	 * regions are repainted as well.
+	 */
+	public void refresh(Component component, Map<Component, Rectangle> anchoredElementBounds) {
+
+		if (component == null || component == container) {
+			containerDirty = true;
+		} else {
+			dirtyComponents.add(component);
+		}
+
+		if (anchoredElementBounds != null) {
+			for (Entry<Component, Rectangle> entry : anchoredElementBounds.entrySet()) {
+				if (entry.getKey() != null && entry.getValue() != null) {
+					dirtyComponents.add(entry.getKey());
+					addRegion(entry.getKey().getParent(), entry.getValue());
+				}
+			}
+		}
+
+		if (!scheduled) {
+
+			scheduled = true;
+
+			SwingUtilities.invokeLater(new Runnable() {
+
+				@Override
+				public void run() {
+					flush();
+				}
+			});
+
+		}
+
+	}
+
+	/**
+	 * Handles pending refresh requests immediately if there are any, called before work which
+	 * depends on the current layout.
+	 */
+	public void flushPending() {
+		if (scheduled) {
+			flush();
+		}
+	}
+
+	/**
+	 * Handles all pending refresh requests immediately.
+	 */
+	public void flush() {
+
+		scheduled = false;
+
+		if (containerDirty) {
+
+			container.invalidate();
+			container.validate();
+			container.repaint(container.getVisibleRect());
+
+		} else if (dirtyComponents.size() > 0) {
+
+			for (Component component : dirtyComponents) {
+				component.invalidate();
+			}
+
+			// One layout pass for all dirty components, invalidate() marked their ancestors as well
+			container.validate();
+
+			for (Component component : dirtyComponents) {
+				if (component.isShowing() && !hasDirtyAncestor(component)) {
+					addRegion(component.getParent(), component.getBounds());
+				}
+			}
+
+			Rectangle visibleRect = container.getVisibleRect();
+			for (Rectangle region : dirtyRegions) {
+				Rectangle clipped = region.intersection(visibleRect);
+				if (!clipped.isEmpty()) {
+					container.repaint(clipped);
+				}
+			}
+
+		}
+
+		containerDirty = false;
+		dirtyComponents.clear();
+		dirtyRegions.clear();
+
+	}
+
+	private boolean hasDirtyAncestor(Component component) {
+
+		for (Container parent = component.getParent(); parent != null && parent != container; parent = parent.getParent()) {
+			if (dirtyComponents.contains(parent)) {
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	private void addRegion(Container parent, Rectangle bounds) {
+
+		if (parent == null) {
+			return;
+		}
+
+		Rectangle region = parent == container ? new Rectangle(bounds) : SwingUtilities.convertRectangle(parent, bounds, container);
+
+		// Overlapping regions are merged, typing in one text view produces many requests for the same area
+		for (Rectangle dirtyRegion : dirtyRegions) {
+			if (dirtyRegion.intersects(region)) {
+				dirtyRegion.add(region);
+				return;
+			}
+		}
+
+		dirtyRegions.add(region);
+
+	}
+
+}
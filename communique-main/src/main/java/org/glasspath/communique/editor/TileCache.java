@@ -0,0 +1,267 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.editor;
+
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.image.BufferedImage;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.swing.JComponent;
+import javax.swing.JViewport;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Renders the container into offscreen tiles while it is being scrolled, the parts of the
+ * viewport exposed by scrolling are then copied from the tiles instead of being painted again.
+ * Tiles are kept between scroll bursts, outside a burst the container is painted normally and
+ * the tiles under the painted area are dropped (something changed there). Edits and selection
+ * changes drop the tiles of the affected regions, see {@link #invalidate(Rectangle)}. Must be
+ * used on the EDT.
+ */
+public class TileCache {
+
+	public static final int TILE_SIZE = 256;
+	public static final int SCROLL_BURST_DELAY = 250;
+
+	// Enough for a few screens of a maximized editor, at 2x scale a tile uses 1 MB
+	public static final long MAX_BYTES = 32L * 1024L * 1024L;
+
+	private final JComponent container;
+	private final ContentPainter painter;
+	private final Map<Long, BufferedImage> tiles = new LinkedHashMap<Long, BufferedImage>(16, 0.75F, true);
+	private final Timer scrollBurstTimer;
+	private JViewport viewport = null;
+	private boolean enabled = false;
+	private boolean scrolling = false;
+	private double scale = 1.0;
+	private long bytes = 0;
+
+	public TileCache(JComponent container, ContentPainter painter) {
+
+		this.container = container;
+		this.painter = painter;
+
+		scrollBurstTimer = new Timer(SCROLL_BURST_DELAY, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				scrolling = false;
+			}
+		});
+		scrollBurstTimer.setRepeats(false);
+
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	public void setEnabled(boolean enabled) {
+
+		this.enabled = enabled;
+
+		if (enabled) {
+			installViewportListener();
+		} else {
+			scrolling = false;
+			clear();
+			container.repaint();
+		}
+
+	}
+
+	public int getTileCount() {
+		return tiles.size();
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Drops all tiles, the caller is responsible for repainting.
+	 */
+	public void clear() {
+		tiles.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * Drops the tiles which intersect the given region (in container coordinates), the caller
+	 * is responsible for repainting the region.
+	 */
+	public void invalidate(Rectangle region) {
+
+		if (region == null || region.isEmpty() || tiles.size() == 0) {
+			return;
+		}
+
+		int startX = Math.max(0, region.x / TILE_SIZE);
+		int startY = Math.max(0, region.y / TILE_SIZE);
+		long endX = Math.floorDiv((long) region.x + region.width - 1, TILE_SIZE);
+		long endY = Math.floorDiv((long) region.y + region.height - 1, TILE_SIZE);
+
+		Iterator<Entry<Long, BufferedImage>> iterator = tiles.entrySet().iterator();
+		while (iterator.hasNext()) {
+
+			Entry<Long, BufferedImage> entry = iterator.next();
+
+			long key = entry.getKey();
+			int x = (int) key;
+			int y = (int) (key >> 32);
+
+			if (x >= startX && x <= endX && y >= startY && y <= endY) {
+				bytes -= getBytes(entry.getValue());
+				iterator.remove();
+			}
+
+		}
+
+	}
+
+	/**
+	 * Paints the container, from tiles during a scroll burst and directly otherwise.
+	 */
+	public void paint(Graphics g) {
+
+		if (!enabled || !scrolling) {
+
+			// Whatever is painted outside a scroll burst may have changed since its tiles were rendered
+			if (enabled) {
+				invalidate(g.getClipBounds());
+			}
+
+			painter.paintContent((Graphics2D) g);
+			return;
+
+		}
+
+		Graphics2D g2d = (Graphics2D) g;
+
+		double scale = g2d.getTransform().getScaleX();
+		if (scale != this.scale) {
+			this.scale = scale;
+			clear();
+		}
+
+		Rectangle clip = g.getClipBounds();
+		if (clip == null) {
+			clip = new Rectangle(0, 0, container.getWidth(), container.getHeight());
+		}
+
+		int startX = Math.max(0, clip.x / TILE_SIZE);
+		int startY = Math.max(0, clip.y / TILE_SIZE);
+		int endX = (clip.x + clip.width - 1) / TILE_SIZE;
+		int endY = (clip.y + clip.height - 1) / TILE_SIZE;
+
+		for (int y = startY; y <= endY; y++) {
+			for (int x = startX; x <= endX; x++) {
+				g2d.drawImage(getTile(x, y, g2d.getDeviceConfiguration()), x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE, null);
+			}
+		}
+
+	}
+
+	private BufferedImage getTile(int x, int y, GraphicsConfiguration graphicsConfiguration) {
+
+		Long key = ((long) y << 32) | (x & 0xFFFFFFFFL);
+
+		BufferedImage tile = tiles.get(key);
+		if (tile == null) {
+
+			// Tiles are rendered at device resolution, otherwise they would look blurry on HiDPI screens
+			int size = (int) Math.ceil(TILE_SIZE * scale);
+			tile = graphicsConfiguration.createCompatibleImage(size, size, Transparency.OPAQUE);
+
+			Graphics2D g2d = tile.createGraphics();
+			g2d.scale(scale, scale);
+			g2d.translate(-x * TILE_SIZE, -y * TILE_SIZE);
+			g2d.setClip(x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+			g2d.setColor(container.getBackground());
+			g2d.fillRect(x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+			painter.paintContent(g2d);
+			g2d.dispose();
+
+			tiles.put(key, tile);
+			bytes += getBytes(tile);
+
+			Iterator<BufferedImage> iterator = tiles.values().iterator();
+			while (bytes > MAX_BYTES && iterator.hasNext()) {
+				BufferedImage eldest = iterator.next();
+				if (eldest != tile) {
+					bytes -= getBytes(eldest);
+					iterator.remove();
+				}
+			}
+
+		}
+
+		return tile;
+
+	}
+
+	private static long getBytes(BufferedImage tile) {
+		return 4L * tile.getWidth() * tile.getHeight();
+	}
+
+	private void installViewportListener() {
+
+		if (viewport == null) {
+
+			viewport = (JViewport) SwingUtilities.getAncestorOfClass(JViewport.class, container);
+			if (viewport != null) {
+				viewport.addChangeListener(new ChangeListener() {
+
+					@Override
+					public void stateChanged(ChangeEvent e) {
+						if (enabled) {
+							scrolling = true;
+							scrollBurstTimer.restart();
+						}
+					}
+				});
+			}
+
+		}
+
+	}
+
+	public static interface ContentPainter {
+
+		public void paintContent(Graphics2D g2d);
+
+	}
+
+}
@@ -0,0 +1,253 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.glasspath.common.share.mail.account.Account;
+import org.glasspath.common.share.mail.account.ImapConfiguration;
+
+import com.sun.mail.iap.Argument;
+import com.sun.mail.iap.ProtocolException;
+import com.sun.mail.iap.Response;
+import com.sun.mail.imap.IMAPFolder;
+import com.sun.mail.imap.IMAPStore;
+import com.sun.mail.imap.protocol.BASE64MailboxEncoder;
+import com.sun.mail.imap.protocol.IMAPProtocol;
+import com.sun.mail.util.CRLFOutputStream;
+
+import jakarta.mail.Flags;
+import jakarta.mail.Folder;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Store;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Appends messages to the IMAP "Sent" folder of an account. COMPRESS=DEFLATE is enabled when the
+ * server advertises it, literals are sent non-synchronizing (LITERAL+) when supported, and when
+ * more than one message is appended and the server supports MULTIAPPEND (RFC 3502) messages are
+ * uploaded with a single APPEND command per group of at most MAX_MULTIAPPEND_BYTES. Messages which
+ * are larger than that are appended one by one, so they are never buffered in memory. Every
+ * message is added to the appended list as soon as the server confirmed it, a caller which
+ * retries after a failure only has to retry the others.
+ */
+public class ImapAppender {
+
+	public static final int MAX_MULTIAPPEND_BYTES = 8 * 1024 * 1024;
+
+	private ImapAppender() {
+
+	}
+
+	public static void append(List<MimeMessage> messages, Account account, String password, int timeout, List<MimeMessage> appended) throws MessagingException, IOException {
+
+		ImapConfiguration imapConfiguration = account.getImapConfiguration();
+		if (imapConfiguration == null || messages.size() == 0) {
+			return;
+		}
+
+		Properties properties = createProperties(imapConfiguration, timeout);
+		Session session = Session.getInstance(properties);
+
+		Store store = session.getStore(properties.getProperty("mail.store.protocol")); //$NON-NLS-1$
+
+		try {
+
+			store.connect(imapConfiguration.getHost(), imapConfiguration.getPort(), account.getEmail(), password);
+
+			Folder folder = store.getFolder(imapConfiguration.getSentFolderPath());
+
+			for (MimeMessage message : messages) {
+				message.setFlag(Flags.Flag.SEEN, true);
+			}
+
+			if (messages.size() > 1 && folder instanceof IMAPFolder && store instanceof IMAPStore && ((IMAPStore) store).hasCapability("MULTIAPPEND")) { //$NON-NLS-1$
+
+				List<MimeMessage> group = new ArrayList<>();
+				List<byte[]> groupBytes = new ArrayList<>();
+				long groupSize = 0;
+
+				for (MimeMessage message : messages) {
+
+					byte[] bytes = encode(message, MAX_MULTIAPPEND_BYTES);
+					if (bytes == null) {
+						folder.appendMessages(new Message[] { message });
+						appended.add(message);
+						continue;
+					}
+
+					if (groupSize + bytes.length > MAX_MULTIAPPEND_BYTES) {
+						multiAppend((IMAPFolder) folder, groupBytes);
+						appended.addAll(group);
+						group.clear();
+						groupBytes.clear();
+						groupSize = 0;
+					}
+
+					group.add(message);
+					groupBytes.add(bytes);
+					groupSize += bytes.length;
+
+				}
+
+				// A MULTIAPPEND command appends all of its messages or none of them (RFC 3502)
+				multiAppend((IMAPFolder) folder, groupBytes);
+				appended.addAll(group);
+
+			} else {
+				// The protocol layer sends literals as LITERAL+ by itself when the server supports it
+				for (MimeMessage message : messages) {
+					folder.appendMessages(new Message[] { message });
+					appended.add(message);
+				}
+			}
+
+		} finally {
+			store.close();
+		}
+
+	}
+
+	/**
+	 * Returns the message as it is sent to the server, or null if it is larger than maxSize.
+	 */
+	private static byte[] encode(MimeMessage message, int maxSize) throws MessagingException, IOException {
+
+		LimitedOutputStream bytes = new LimitedOutputStream(maxSize);
+
+		try {
+			message.writeTo(new CRLFOutputStream(bytes));
+		} catch (LimitExceededException e) {
+			return null;
+		}
+
+		return bytes.toByteArray();
+
+	}
+
+	private static void multiAppend(IMAPFolder folder, List<byte[]> messages) throws MessagingException {
+
+		if (messages.size() == 0) {
+			return;
+		}
+
+		Argument args = new Argument();
+		args.writeString(BASE64MailboxEncoder.encode(folder.getFullName()));
+
+		for (byte[] message : messages) {
+			args.writeAtom("(\\Seen)"); //$NON-NLS-1$
+			args.writeBytes(message);
+		}
+
+		folder.doCommand(new IMAPFolder.ProtocolCommand() {
+
+			@Override
+			public Object doCommand(IMAPProtocol protocol) throws ProtocolException {
+
+				Response[] responses = protocol.command("APPEND", args); //$NON-NLS-1$
+				protocol.notifyResponseHandlers(responses);
+				protocol.handleResult(responses[responses.length - 1]);
+
+				return null;
+
+			}
+		});
+
+	}
+
+	public static Properties createProperties(ImapConfiguration imapConfiguration, int timeout) {
+
+		// Same strategies as SmtpTransportPool: IMAP upgrades to TLS when the server offers it, IMAP_TLS
+		// requires STARTTLS and IMAPS connects over SSL. Matched on the exact constant name because not
+		// every version of Imap.Protocol has IMAP_TLS, a missing protocol is treated as IMAP
+		String protocol = imapConfiguration.getProtocol() != null ? imapConfiguration.getProtocol().name() : "IMAP"; //$NON-NLS-1$
+		boolean ssl = "IMAPS".equals(protocol); //$NON-NLS-1$
+		boolean startTls = "IMAP_TLS".equals(protocol); //$NON-NLS-1$
+
+		String name = ssl ? "imaps" : "imap"; //$NON-NLS-1$ //$NON-NLS-2$
+
+		Properties properties = new Properties();
+		properties.put("mail.store.protocol", name); //$NON-NLS-1$
+		properties.put("mail." + name + ".host", imapConfiguration.getHost()); //$NON-NLS-1$ //$NON-NLS-2$
+		properties.put("mail." + name + ".port", String.valueOf(imapConfiguration.getPort())); //$NON-NLS-1$ //$NON-NLS-2$
+		properties.put("mail." + name + ".connectiontimeout", String.valueOf(timeout)); //$NON-NLS-1$ //$NON-NLS-2$
+		properties.put("mail." + name + ".timeout", String.valueOf(timeout)); //$NON-NLS-1$ //$NON-NLS-2$
+		properties.put("mail." + name + ".writetimeout", String.valueOf(timeout)); //$NON-NLS-1$ //$NON-NLS-2$
+
+		// Only used when the server advertises COMPRESS=DEFLATE
+		properties.put("mail." + name + ".compress.enable", "true"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		if (ssl) {
+			properties.put("mail.imaps.ssl.checkserveridentity", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+		} else if (startTls) {
+			properties.put("mail.imap.starttls.enable", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+			properties.put("mail.imap.starttls.required", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+			properties.put("mail.imap.ssl.checkserveridentity", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+		} else {
+			// Opportunistic, the login is only sent in cleartext if the server doesn't offer STARTTLS
+			properties.put("mail.imap.starttls.enable", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+		return properties;
+
+	}
+
+	private static class LimitedOutputStream extends ByteArrayOutputStream {
+
+		private final int maxSize;
+
+		private LimitedOutputStream(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		@Override
+		public synchronized void write(int b) {
+			if (count + 1 > maxSize) {
+				throw new LimitExceededException();
+			}
+			super.write(b);
+		}
+
+		@Override
+		public synchronized void write(byte[] b, int off, int len) {
+			if (count + len > maxSize) {
+				throw new LimitExceededException();
+			}
+			super.write(b, off, len);
+		}
+
+	}
+
+	private static class LimitExceededException extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+	}
+
+}
@@ -0,0 +1,128 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.glasspath.common.share.mail.MailShareUtils;
+import org.glasspath.common.share.mail.Mailable;
+import org.glasspath.common.share.mail.account.Account;
+import org.glasspath.communique.media.ImageStore;
+import org.simplejavamail.api.email.EmailPopulatingBuilder;
+import org.simplejavamail.email.EmailBuilder;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * A mailable which carries the bytes of its inline images instead of paths to image files.
+ * Used for SMTP and .eml export where the images are embedded directly, mail clients which
+ * receive the mailable by path need {@link #storeImages()} to be called first.
+ */
+public class InlineMailable extends Mailable {
+
+	private final Map<String, byte[]> imageData;
+
+	public InlineMailable() {
+		this(new LinkedHashMap<String, byte[]>());
+	}
+
+	public InlineMailable(Map<String, byte[]> imageData) {
+		this.imageData = imageData;
+	}
+
+	@JsonIgnore
+	public Map<String, byte[]> getImageData() {
+		return imageData;
+	}
+
+	/**
+	 * Writes the images to the image store and adds their paths to the images of the mailable,
+	 * after this the mailable can be handled like any other mailable (for example by the outbox).
+	 */
+	public void storeImages() throws IOException {
+
+		if (getImages() == null) {
+			setImages(new HashMap<String, String>());
+		}
+
+		for (Entry<String, byte[]> entry : imageData.entrySet()) {
+			File imageFile = ImageStore.getInstance().store(entry.getKey(), entry.getValue());
+			getImages().put(entry.getKey(), imageFile.getAbsolutePath());
+		}
+
+	}
+
+	/**
+	 * Creates the simplejavamail email for the given mailable, the image bytes of an
+	 * inline mailable are embedded without going through the file system.
+	 */
+	public static org.simplejavamail.api.email.Email createSimpleEmail(Mailable mailable, Account account) throws Exception {
+
+		org.simplejavamail.api.email.Email simpleEmail = MailShareUtils.createSimpleEmail(mailable, account);
+
+		if (simpleEmail != null && mailable instanceof InlineMailable && mailable.getImages() == null) {
+
+			Map<String, byte[]> imageData = ((InlineMailable) mailable).getImageData();
+			if (imageData.size() > 0) {
+
+				EmailPopulatingBuilder builder = EmailBuilder.copying(simpleEmail);
+				for (Entry<String, byte[]> entry : imageData.entrySet()) {
+					builder.withEmbeddedImage(entry.getKey(), entry.getValue(), getMimeType(entry.getKey(), entry.getValue()));
+				}
+
+				simpleEmail = builder.buildEmail();
+
+			}
+
+		}
+
+		return simpleEmail;
+
+	}
+
+	private static String getMimeType(String name, byte[] bytes) {
+
+		String mimeType = null;
+
+		try {
+			mimeType = URLConnection.guessContentTypeFromStream(new ByteArrayInputStream(bytes));
+		} catch (IOException e) {
+			// Fall back to the name
+		}
+
+		if (mimeType == null) {
+			mimeType = URLConnection.guessContentTypeFromName(name);
+		}
+
+		return mimeType != null ? mimeType : "application/octet-stream"; //$NON-NLS-1$
+
+	}
+
+}
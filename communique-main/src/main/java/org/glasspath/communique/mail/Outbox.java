@@ -0,0 +1,889 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.glasspath.common.share.mail.Mailable;
+import org.glasspath.common.share.mail.account.Account;
+import org.glasspath.communique.Communique;
+import org.glasspath.communique.Configuration;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+import jakarta.mail.AuthenticationFailedException;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Disk backed queue for emails that could not be sent. Every change is appended to a journal
+ * (one JSON record per line) and flushed to disk before it is acted upon, so pending emails
+ * survive a crash or restart. The images of an entry are copied into the outbox directory, they
+ * can't be evicted from the image store while the entry waits. Entries are retried with
+ * exponential backoff and jitter, retries for an account start once its password is known (see
+ * {@link #resume(Account, String)}).
+ * 
+ * Several processes (or windows) can open the same directory. The outbox holding the lock on
+ * LOCK_FILE_NAME owns the main journal, the others write to a journal of their own which is
+ * locked while they are open. The owner adopts those journals once they are no longer locked,
+ * so every entry is replayed and retried by one outbox only. A closed outbox rejects new entries
+ * and stops writing, entries which were in flight are retried from the journal by the next run.
+ */
+public class Outbox {
+
+	public static final String JOURNAL_FILE_NAME = "journal.jsonl"; //$NON-NLS-1$
+	public static final String JOURNAL_PREFIX = "journal-"; //$NON-NLS-1$
+	public static final String JOURNAL_EXTENSION = ".jsonl"; //$NON-NLS-1$
+	public static final String LOCK_FILE_NAME = "outbox.lock"; //$NON-NLS-1$
+	public static final String IMAGES_DIR_NAME = "images"; //$NON-NLS-1$
+	public static final long ADOPT_INTERVAL = 60000;
+
+	public static final long RETRY_BASE_DELAY = 30000;
+	public static final long RETRY_MAX_DELAY = 3600000;
+	public static final int MAX_ATTEMPTS = 10;
+
+	// Closing a channel can release the locks which other channels of this process hold on the same
+	// file, so files which are locked by an outbox of this process are never opened by another one
+	private static final Set<String> LOCKED_FILES = new HashSet<>();
+
+	private static final String RECORD_ADD = "add"; //$NON-NLS-1$
+	private static final String RECORD_ATTEMPT = "attempt"; //$NON-NLS-1$
+	private static final String RECORD_REMOVE = "remove"; //$NON-NLS-1$
+
+	private final File dir;
+	private final File journalFile;
+	private final File imagesDir;
+	private final Configuration configuration;
+	private final SendExecutor sendExecutor;
+	private final SmtpTransportPool transportPool;
+	private final SentFolderAppender sentFolderAppender;
+	private final ObjectMapper objectMapper;
+	private final Map<String, OutboxEntry> entries = new LinkedHashMap<>();
+	private final Map<String, String> passwords = new HashMap<>();
+	private final Map<String, Boolean> outcomes = new HashMap<>();
+	private final ScheduledExecutorService scheduler;
+
+	private FileOutputStream journal = null;
+	private FileChannel lockChannel = null;
+	private FileLock lock = null;
+	private boolean closed = false;
+
+	public Outbox(File dir, Configuration configuration, SendExecutor sendExecutor, SmtpTransportPool transportPool, SentFolderAppender sentFolderAppender) {
+
+		this.dir = dir;
+		this.imagesDir = new File(dir, IMAGES_DIR_NAME);
+		this.configuration = configuration;
+		this.sendExecutor = sendExecutor;
+		this.transportPool = transportPool;
+		this.sentFolderAppender = sentFolderAppender;
+
+		objectMapper = new ObjectMapper();
+		objectMapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "outbox-scheduler"); //$NON-NLS-1$
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		if (lock()) {
+
+			journalFile = new File(dir, JOURNAL_FILE_NAME);
+
+			load();
+
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					adopt();
+				}
+			}, ADOPT_INTERVAL, ADOPT_INTERVAL, TimeUnit.MILLISECONDS);
+
+		} else {
+
+			// Created and locked right away, otherwise the owner could take it for the journal of an exited process
+			journalFile = new File(dir, JOURNAL_PREFIX + UUID.randomUUID().toString() + JOURNAL_EXTENSION);
+			openJournal();
+
+			Communique.LOGGER.info("Outbox: " + dir + " is owned by another outbox, using " + journalFile.getName()); //$NON-NLS-1$ //$NON-NLS-2$
+
+		}
+
+	}
+
+	/**
+	 * Returns true if this outbox owns the main journal.
+	 */
+	public synchronized boolean isOwner() {
+		return lock != null;
+	}
+
+	private boolean lock() {
+
+		File lockFile = new File(dir, LOCK_FILE_NAME);
+
+		synchronized (LOCKED_FILES) {
+
+			if (LOCKED_FILES.contains(lockFile.getAbsolutePath())) {
+				return false;
+			}
+
+			try {
+
+				dir.mkdirs();
+
+				lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				lock = lockChannel.tryLock();
+
+				if (lock != null) {
+					LOCKED_FILES.add(lockFile.getAbsolutePath());
+				} else {
+					lockChannel.close();
+					lockChannel = null;
+				}
+
+			} catch (IOException | OverlappingFileLockException e) {
+				Communique.LOGGER.error("Exception while locking outbox", e); //$NON-NLS-1$
+			}
+
+		}
+
+		return lock != null;
+
+	}
+
+	public synchronized List<OutboxEntry> getPendingEntries() {
+		return new ArrayList<>(entries.values());
+	}
+
+	public synchronized int getPendingCount(Account account) {
+
+		int count = 0;
+
+		for (OutboxEntry entry : entries.values()) {
+			if (entry.getAccount().equals(account.getEmail())) {
+				count++;
+			}
+		}
+
+		return count;
+
+	}
+
+	/**
+	 * Returns true if the entry with the given id was sent, false if it was dropped (after a
+	 * permanent failure or too many attempts) and null while it is pending. Only entries which
+	 * were handled since this outbox was created have an outcome.
+	 */
+	public synchronized Boolean getOutcome(String id) {
+		return outcomes.get(id);
+	}
+
+	/**
+	 * Queues an email that failed with a transient error, the first retry is scheduled after the
+	 * backoff delay. Returns the id of the entry, see {@link #getOutcome(String)}.
+	 */
+	public synchronized String add(Mailable mailable, Account account, String password) {
+
+		if (closed) {
+			throw new IllegalStateException("Outbox is closed"); //$NON-NLS-1$
+		}
+
+		OutboxEntry entry = new OutboxEntry();
+		entry.setId(UUID.randomUUID().toString());
+		entry.setAccount(account.getEmail());
+		entry.setMailable(mailable);
+		entry.setAttempts(1);
+		entry.setNextAttempt(System.currentTimeMillis() + getRetryDelay(1));
+
+		// The journal only stores image paths, the images must exist as long as the entry does
+		storeImages(entry);
+
+		// Kept in memory even if the journal can't be written, it is then retried until this process exits
+		append(RECORD_ADD, entry);
+		entries.put(entry.getId(), entry);
+
+		if (password != null) {
+			passwords.put(account.getEmail(), password);
+		}
+
+		schedule(entry);
+
+		return entry.getId();
+
+	}
+
+	/**
+	 * Makes the password of an account available for retries and re-drives its pending entries.
+	 */
+	public synchronized void resume(Account account, String password) {
+
+		if (closed) {
+			return;
+		}
+
+		passwords.put(account.getEmail(), password);
+
+		for (OutboxEntry entry : entries.values()) {
+			if (entry.getAccount().equals(account.getEmail())) {
+				schedule(entry);
+			}
+		}
+
+	}
+
+	private void schedule(OutboxEntry entry) {
+
+		if (closed) {
+			return;
+		}
+
+		long delay = Math.max(0, entry.getNextAttempt() - System.currentTimeMillis());
+
+		scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				retry(entry.getId());
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+
+	}
+
+	private void retry(String id) {
+
+		OutboxEntry entry;
+		Account account;
+		String password;
+
+		synchronized (this) {
+
+			entry = entries.get(id);
+			if (entry == null || entry.getNextAttempt() > System.currentTimeMillis()) {
+				// Already sent, or rescheduled by a later attempt
+				return;
+			}
+
+			account = findAccount(entry.getAccount());
+			password = passwords.get(entry.getAccount());
+			if (account == null || password == null) {
+				return;
+			}
+
+			// Mark as in flight so a concurrent resume() doesn't submit it twice
+			entry.setNextAttempt(Long.MAX_VALUE);
+
+		}
+
+		sendExecutor.submit(account, new Runnable() {
+
+			@Override
+			public void run() {
+
+				try {
+
+					MimeMessage message = transportPool.send(entry.getMailable(), account, password);
+					if (message != null) {
+						sentFolderAppender.append(message, account, password);
+					}
+
+					remove(entry, true);
+
+					Communique.LOGGER.info("Outbox: sent " + entry.getId() + " after " + entry.getAttempts() + " attempts"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+				} catch (Exception e) {
+					failed(entry, e);
+				}
+
+			}
+		});
+
+	}
+
+	private synchronized void failed(OutboxEntry entry, Exception e) {
+
+		if (closed) {
+			Communique.LOGGER.warn("Outbox: attempt " + entry.getAttempts() + " failed for " + entry.getId() + " after closing, it is retried by the next run"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			return;
+		}
+
+		int attempts = entry.getAttempts() + 1;
+
+		if (!isTransient(e) || attempts > MAX_ATTEMPTS) {
+			Communique.LOGGER.error("Outbox: giving up on " + entry.getId() + " after " + entry.getAttempts() + " attempts", e); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			remove(entry, false);
+		} else {
+
+			Communique.LOGGER.warn("Outbox: attempt " + entry.getAttempts() + " failed for " + entry.getId() + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+			entry.setAttempts(attempts);
+			entry.setNextAttempt(System.currentTimeMillis() + getRetryDelay(attempts));
+			append(RECORD_ATTEMPT, entry);
+
+			schedule(entry);
+
+		}
+
+	}
+
+	private synchronized void remove(OutboxEntry entry, boolean sent) {
+		if (entries.remove(entry.getId()) != null) {
+			append(RECORD_REMOVE, entry);
+			deleteImages(entry.getId());
+			outcomes.put(entry.getId(), sent);
+		}
+	}
+
+	/**
+	 * Copies the images of the entry into the outbox directory and points the mailable at the copies.
+	 */
+	private void storeImages(OutboxEntry entry) {
+
+		Mailable mailable = entry.getMailable();
+		File dir = new File(imagesDir, entry.getId());
+		Map<String, String> images = new HashMap<>();
+
+		try {
+
+			if (mailable instanceof InlineMailable && mailable.getImages() == null) {
+				for (Entry<String, byte[]> image : ((InlineMailable) mailable).getImageData().entrySet()) {
+					File file = createImageFile(dir, image.getKey());
+					Files.write(file.toPath(), image.getValue());
+					images.put(image.getKey(), file.getAbsolutePath());
+				}
+			} else if (mailable.getImages() != null) {
+				for (Entry<String, String> image : mailable.getImages().entrySet()) {
+					File file = createImageFile(dir, image.getKey());
+					Files.copy(new File(image.getValue()).toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					images.put(image.getKey(), file.getAbsolutePath());
+				}
+			}
+
+			if (images.size() > 0) {
+				mailable.setImages(images);
+			}
+
+		} catch (IOException e) {
+			Communique.LOGGER.error("Exception while copying images to outbox", e); //$NON-NLS-1$
+		}
+
+	}
+
+	private static File createImageFile(File dir, String name) {
+
+		dir.mkdirs();
+
+		// Image names come from the email, they must not be able to point outside the directory
+		return new File(dir, new File(name).getName());
+
+	}
+
+	private void deleteImages(String id) {
+
+		File dir = new File(imagesDir, id);
+
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+
+		dir.delete();
+
+	}
+
+	/**
+	 * Removes the image directories of entries which no longer exist (for example because the
+	 * process exited between writing the remove record and deleting the images).
+	 */
+	private void deleteOrphanedImages() {
+
+		File[] dirs = imagesDir.listFiles();
+		if (dirs != null) {
+			for (File dir : dirs) {
+				if (dir.isDirectory() && !entries.containsKey(dir.getName())) {
+					deleteImages(dir.getName());
+				}
+			}
+		}
+
+	}
+
+	private Account findAccount(String email) {
+
+		for (Account account : configuration.getAccounts()) {
+			if (email.equals(account.getEmail())) {
+				return account;
+			}
+		}
+
+		return null;
+
+	}
+
+	private boolean openJournal() {
+
+		try {
+
+			journalFile.getParentFile().mkdirs();
+			journal = new FileOutputStream(journalFile, true);
+
+			// The main journal is protected by the lock file
+			if (lock == null) {
+				synchronized (LOCKED_FILES) {
+					journal.getChannel().lock();
+					LOCKED_FILES.add(journalFile.getAbsolutePath());
+				}
+			}
+
+			return true;
+
+		} catch (IOException e) {
+			Communique.LOGGER.error("Exception while opening outbox journal", e); //$NON-NLS-1$
+		}
+
+		return false;
+
+	}
+
+	private boolean append(String type, OutboxEntry entry) {
+
+		if (closed) {
+			Communique.LOGGER.warn("Outbox is closed, not writing " + type + " record for " + entry.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+			return false;
+		}
+
+		try {
+
+			if (journal == null && !openJournal()) {
+				return false;
+			}
+
+			JournalRecord record = new JournalRecord();
+			record.setType(type);
+			record.setId(entry.getId());
+			if (RECORD_ADD.equals(type)) {
+				record.setEntry(entry);
+			} else if (RECORD_ATTEMPT.equals(type)) {
+				record.setAttempts(entry.getAttempts());
+				record.setNextAttempt(entry.getNextAttempt());
+			}
+
+			journal.write(objectMapper.writeValueAsBytes(record));
+			journal.write('\n');
+			journal.flush();
+			journal.getChannel().force(false);
+
+			return true;
+
+		} catch (IOException e) {
+			Communique.LOGGER.error("Exception while writing outbox journal", e); //$NON-NLS-1$
+		}
+
+		return false;
+
+	}
+
+	private void load() {
+
+		if (journalFile.exists()) {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(journalFile.toPath()), StandardCharsets.UTF_8))) {
+				read(reader, entries);
+			} catch (IOException e) {
+				Communique.LOGGER.error("Exception while reading outbox journal", e); //$NON-NLS-1$
+			}
+		}
+
+		List<File> adoptedFiles = new ArrayList<>();
+		boolean complete = readJournals(entries, adoptedFiles);
+
+		// The adopted journals are only deleted once their entries are in the main journal
+		if (compact()) {
+			for (File file : adoptedFiles) {
+				file.delete();
+			}
+		}
+
+		// Outboxes which are still open may have stored images for entries we don't know about
+		if (complete) {
+			deleteOrphanedImages();
+		}
+
+		if (entries.size() > 0) {
+			Communique.LOGGER.info("Outbox: " + entries.size() + " pending emails"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+	}
+
+	/**
+	 * Moves the entries of outboxes which were closed since the last check into this outbox.
+	 */
+	private synchronized void adopt() {
+
+		if (closed) {
+			return;
+		}
+
+		Map<String, OutboxEntry> adopted = new LinkedHashMap<>();
+		List<File> adoptedFiles = new ArrayList<>();
+		readJournals(adopted, adoptedFiles);
+
+		for (OutboxEntry entry : adopted.values()) {
+			if (!entries.containsKey(entry.getId()) && !append(RECORD_ADD, entry)) {
+				// Keep the files, the entries are adopted again by the next run
+				return;
+			}
+		}
+
+		for (OutboxEntry entry : adopted.values()) {
+			if (entries.put(entry.getId(), entry) == null) {
+				schedule(entry);
+			}
+		}
+
+		for (File file : adoptedFiles) {
+			file.delete();
+		}
+
+		if (adopted.size() > 0) {
+			Communique.LOGGER.info("Outbox: adopted " + adopted.size() + " pending emails"); //$NON-NLS-1$ //$NON-NLS-2$
+		}
+
+	}
+
+	/**
+	 * Reads the journals of other outboxes which are no longer open, the files which were read
+	 * are added to adoptedFiles. Returns false if some of them are still open.
+	 */
+	private boolean readJournals(Map<String, OutboxEntry> entries, List<File> adoptedFiles) {
+
+		boolean complete = true;
+
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return complete;
+		}
+
+		for (File file : files) {
+
+			if (!file.getName().startsWith(JOURNAL_PREFIX) || !file.getName().endsWith(JOURNAL_EXTENSION)) {
+				continue;
+			}
+
+			synchronized (LOCKED_FILES) {
+				if (LOCKED_FILES.contains(file.getAbsolutePath())) {
+					complete = false;
+					continue;
+				}
+			}
+
+			try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw"); FileLock fileLock = randomAccessFile.getChannel().tryLock()) { //$NON-NLS-1$
+
+				if (fileLock == null) {
+					complete = false;
+				} else if (randomAccessFile.length() == 0 && System.currentTimeMillis() - file.lastModified() < ADOPT_INTERVAL) {
+					// Possibly created a moment ago and not locked yet by its outbox
+					complete = false;
+				} else {
+
+					// Not closed here, that would close the channel before the lock is released
+					read(new BufferedReader(new InputStreamReader(Channels.newInputStream(randomAccessFile.getChannel()), StandardCharsets.UTF_8)), entries);
+					adoptedFiles.add(file);
+
+				}
+
+			} catch (OverlappingFileLockException e) {
+				// Open in this process
+				complete = false;
+			} catch (IOException e) {
+				Communique.LOGGER.error("Exception while reading outbox journal: " + file, e); //$NON-NLS-1$
+				complete = false;
+			}
+
+		}
+
+		return complete;
+
+	}
+
+	private void read(BufferedReader reader, Map<String, OutboxEntry> entries) throws IOException {
+
+		String line;
+		while ((line = reader.readLine()) != null) {
+
+			try {
+
+				JournalRecord record = objectMapper.readValue(line, JournalRecord.class);
+
+				if (RECORD_ADD.equals(record.getType()) && record.getEntry() != null) {
+					entries.put(record.getId(), record.getEntry());
+				} else if (RECORD_ATTEMPT.equals(record.getType())) {
+					OutboxEntry entry = entries.get(record.getId());
+					if (entry != null) {
+						entry.setAttempts(record.getAttempts());
+						entry.setNextAttempt(record.getNextAttempt());
+					}
+				} else if (RECORD_REMOVE.equals(record.getType())) {
+					entries.remove(record.getId());
+				}
+
+			} catch (IOException e) {
+				// A partially written last line is expected after a crash
+				Communique.LOGGER.warn("Skipping unreadable outbox journal record"); //$NON-NLS-1$
+			}
+
+		}
+
+	}
+
+	private boolean compact() {
+
+		File compactedFile = new File(journalFile.getParentFile(), JOURNAL_FILE_NAME + ".tmp"); //$NON-NLS-1$
+
+		try {
+
+			try (FileOutputStream out = new FileOutputStream(compactedFile)) {
+
+				for (OutboxEntry entry : entries.values()) {
+
+					JournalRecord record = new JournalRecord();
+					record.setType(RECORD_ADD);
+					record.setId(entry.getId());
+					record.setEntry(entry);
+
+					out.write(objectMapper.writeValueAsBytes(record));
+					out.write('\n');
+
+				}
+
+				out.getChannel().force(false);
+
+			}
+
+			Files.move(compactedFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+			return true;
+
+		} catch (IOException e) {
+			Communique.LOGGER.error("Exception while compacting outbox journal", e); //$NON-NLS-1$
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Stops retrying and releases the journal, the entries which are still pending are picked
+	 * up again by the next outbox which owns the directory.
+	 */
+	public synchronized void close() {
+
+		if (closed) {
+			return;
+		}
+
+		closed = true;
+
+		File locked = lockChannel != null ? new File(dir, LOCK_FILE_NAME) : journalFile;
+
+		scheduler.shutdownNow();
+
+		if (journal != null) {
+			try {
+				journal.close();
+			} catch (IOException e) {
+				Communique.LOGGER.warn("Exception while closing outbox journal: " + e.getMessage()); //$NON-NLS-1$
+			}
+			journal = null;
+		}
+
+		if (lockChannel != null) {
+			try {
+				// Also releases the lock
+				lockChannel.close();
+			} catch (IOException e) {
+				Communique.LOGGER.warn("Exception while releasing outbox lock: " + e.getMessage()); //$NON-NLS-1$
+			}
+			lockChannel = null;
+			lock = null;
+		}
+
+		synchronized (LOCKED_FILES) {
+			LOCKED_FILES.remove(locked.getAbsolutePath());
+		}
+
+	}
+
+	public static long getRetryDelay(int attempts) {
+
+		long delay = RETRY_BASE_DELAY << Math.min(attempts - 1, 20);
+		if (delay <= 0 || delay > RETRY_MAX_DELAY) {
+			delay = RETRY_MAX_DELAY;
+		}
+
+		// Equal jitter, keeps at least half of the delay but spreads retries of a burst of failures
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+
+	}
+
+	/**
+	 * Returns true for failures which are worth retrying: 4xx replies, connection failures, I/O
+	 * errors and timeouts. Everything else is considered permanent, this includes 5xx replies
+	 * (for any recipient) and authentication failures, retrying those could lock the account.
+	 */
+	public static boolean isTransient(Throwable e) {
+
+		boolean transientFailure = false;
+
+		// MessagingException.getCause() returns the next exception, so this walks the chain
+		// of failed addresses as well (with a limit in case the chain contains a cycle)
+		for (int i = 0; e != null && i < 100; i++) {
+
+			int returnCode = getReturnCode(e);
+
+			if (returnCode >= 500 && returnCode < 600) {
+				return false;
+			} else if (e instanceof AuthenticationFailedException || e instanceof FileNotFoundException || e instanceof NoSuchFileException) {
+				return false;
+			} else if (returnCode >= 400 && returnCode < 500) {
+				transientFailure = true;
+			} else if (e instanceof IOException || e instanceof TimeoutException) {
+				transientFailure = true;
+			}
+
+			e = e.getCause();
+
+		}
+
+		return transientFailure;
+
+	}
+
+	private static int getReturnCode(Throwable e) {
+
+		if (e instanceof SMTPSendFailedException) {
+			return ((SMTPSendFailedException) e).getReturnCode();
+		} else if (e instanceof SMTPAddressFailedException) {
+			return ((SMTPAddressFailedException) e).getReturnCode();
+		} else if (e instanceof SMTPSenderFailedException) {
+			return ((SMTPSenderFailedException) e).getReturnCode();
+		} else {
+			return -1;
+		}
+
+	}
+
+	public static class JournalRecord {
+
+		private String type = null;
+		private String id = null;
+		private OutboxEntry entry = null;
+		private int attempts = 0;
+		private long nextAttempt = 0;
+
+		public JournalRecord() {
+
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public void setType(String type) {
+			this.type = type;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public void setId(String id) {
+			this.id = id;
+		}
+
+		public OutboxEntry getEntry() {
+			return entry;
+		}
+
+		public void setEntry(OutboxEntry entry) {
+			this.entry = entry;
+		}
+
+		public int getAttempts() {
+			return attempts;
+		}
+
+		public void setAttempts(int attempts) {
+			this.attempts = attempts;
+		}
+
+		public long getNextAttempt() {
+			return nextAttempt;
+		}
+
+		public void setNextAttempt(long nextAttempt) {
+			this.nextAttempt = nextAttempt;
+		}
+
+	}
+
+}
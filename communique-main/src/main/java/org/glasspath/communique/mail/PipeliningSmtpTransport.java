@@ -0,0 +1,262 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPMessage;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+
+import jakarta.mail.Address;
+import jakarta.mail.Message;
+import jakarta.mail.MessagingException;
+import jakarta.mail.SendFailedException;
+import jakarta.mail.Session;
+import jakarta.mail.URLName;
+import jakarta.mail.internet.InternetAddress;
+
+/**
+ * SMTP transport that sends MAIL FROM and all RCPT TO commands as one batch when the server
+ * advertises PIPELINING (RFC 2920), the responses are read after the whole batch was written.
+ * The commands carry the same parameters as the ones SMTPTransport builds itself (SMTPUTF8,
+ * DSN RET and NOTIFY, AUTH= and mail extensions). When the server doesn't support pipelining,
+ * a recipient is not an internet address or the message is an SMTPMessage (which can override
+ * these parameters per message), the default (lock-step) implementation is used.
+ */
+public class PipeliningSmtpTransport extends SMTPTransport {
+
+	private final String protocolName;
+	private Message message = null;
+	private Address[] addresses = null;
+	private boolean mailFromPending = false;
+
+	public PipeliningSmtpTransport(Session session, boolean ssl) {
+		super(session, new URLName(ssl ? "smtps" : "smtp", null, -1, null, null, null), ssl ? "smtps" : "smtp", ssl); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+		this.protocolName = ssl ? "smtps" : "smtp"; //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	public boolean isPipelining() {
+		return supportsExtension("PIPELINING"); //$NON-NLS-1$
+	}
+
+	@Override
+	public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException, SendFailedException {
+
+		this.message = message;
+		this.addresses = addresses;
+
+		try {
+			super.sendMessage(message, addresses);
+		} finally {
+			this.message = null;
+			this.addresses = null;
+			this.mailFromPending = false;
+		}
+
+	}
+
+	@Override
+	protected void mailFrom() throws MessagingException {
+
+		String from = getEnvelopeFrom();
+		if (!isPipelining() || message instanceof SMTPMessage || from == null || !isInternetAddresses(addresses)) {
+			super.mailFrom();
+			return;
+		}
+
+		// The response is read in rcptTo() after all recipients have been written
+		sendCommand(createMailFromCommand(from));
+		mailFromPending = true;
+
+	}
+
+	@Override
+	protected void rcptTo() throws MessagingException {
+
+		if (!mailFromPending) {
+			super.rcptTo();
+			return;
+		}
+
+		mailFromPending = false;
+
+		String notify = getDsnNotify();
+
+		List<String> commands = new ArrayList<>();
+		for (Address address : addresses) {
+
+			String command = "RCPT TO:" + normalizeAddress(((InternetAddress) address).getAddress()); //$NON-NLS-1$
+			if (notify != null) {
+				command += " NOTIFY=" + notify; //$NON-NLS-1$
+			}
+
+			sendCommand(command);
+			commands.add(command);
+
+		}
+
+		// Responses arrive in the order the commands were sent, all of them must be consumed
+		// before the next command so the connection stays in sync
+		int mailFromCode = readServerResponse();
+		String mailFromResponse = getLastServerResponse();
+
+		List<Address> valid = new ArrayList<>();
+		List<Address> invalid = new ArrayList<>();
+		MessagingException failures = null;
+
+		for (int i = 0; i < addresses.length; i++) {
+
+			int code = readServerResponse();
+			if (code == 250 || code == 251) {
+				valid.add(addresses[i]);
+			} else {
+
+				invalid.add(addresses[i]);
+
+				// Chained like SMTPTransport does, so callers can tell 4xx from 5xx replies
+				SMTPAddressFailedException failure = new SMTPAddressFailedException((InternetAddress) addresses[i], commands.get(i), code, getLastServerResponse());
+				if (failures == null) {
+					failures = failure;
+				} else {
+					failures.setNextException(failure);
+				}
+
+			}
+
+		}
+
+		if (mailFromCode != 250 || valid.size() == 0 || invalid.size() > 0) {
+
+			// Reset the connection so more messages can be sent, like SMTPTransport does
+			try {
+				issueCommand("RSET", -1); //$NON-NLS-1$
+			} catch (MessagingException e) {
+				// The caller closes the connection when it can't be reset
+			}
+
+		}
+
+		if (mailFromCode != 250) {
+			throw new SMTPSendFailedException("MAIL FROM", mailFromCode, mailFromResponse, null, null, addresses, null); //$NON-NLS-1$
+		} else if (valid.size() == 0 || invalid.size() > 0) {
+			throw new SendFailedException("Invalid Addresses", failures, null, valid.toArray(new Address[0]), invalid.toArray(new Address[0])); //$NON-NLS-1$
+		}
+
+	}
+
+	/**
+	 * Builds the MAIL FROM command with the same parameters as SMTPTransport.mailFrom().
+	 */
+	private String createMailFromCommand(String from) {
+
+		boolean utf8 = isAllowUtf8() && supportsExtension("SMTPUTF8"); //$NON-NLS-1$
+
+		String command = "MAIL FROM:" + normalizeAddress(from); //$NON-NLS-1$
+
+		if (utf8) {
+			command += " SMTPUTF8"; //$NON-NLS-1$
+		}
+
+		if (supportsExtension("DSN")) { //$NON-NLS-1$
+			String ret = session.getProperty("mail." + protocolName + ".dsn.ret"); //$NON-NLS-1$ //$NON-NLS-2$
+			if (ret != null) {
+				command += " RET=" + ret; //$NON-NLS-1$
+			}
+		}
+
+		if (supportsExtension("AUTH")) { //$NON-NLS-1$
+			String submitter = session.getProperty("mail." + protocolName + ".submitter"); //$NON-NLS-1$ //$NON-NLS-2$
+			if (submitter != null) {
+				try {
+					command += " AUTH=" + xtext(submitter, utf8); //$NON-NLS-1$
+				} catch (IllegalArgumentException e) {
+					// Ignored, like SMTPTransport does
+				}
+			}
+		}
+
+		String extension = session.getProperty("mail." + protocolName + ".mailextension"); //$NON-NLS-1$ //$NON-NLS-2$
+		if (extension != null && extension.length() > 0) {
+			command += " " + extension; //$NON-NLS-1$
+		}
+
+		return command;
+
+	}
+
+	private String getDsnNotify() {
+
+		if (!supportsExtension("DSN")) { //$NON-NLS-1$
+			return null;
+		}
+
+		return session.getProperty("mail." + protocolName + ".dsn.notify"); //$NON-NLS-1$ //$NON-NLS-2$
+
+	}
+
+	private String getEnvelopeFrom() throws MessagingException {
+
+		String from = session.getProperty("mail." + protocolName + ".from"); //$NON-NLS-1$ //$NON-NLS-2$
+		if (from != null && from.length() > 0) {
+			return from;
+		}
+
+		if (message != null) {
+			Address[] fromAddresses = message.getFrom();
+			if (fromAddresses != null && fromAddresses.length > 0 && fromAddresses[0] instanceof InternetAddress) {
+				return ((InternetAddress) fromAddresses[0]).getAddress();
+			}
+		}
+
+		return null;
+
+	}
+
+	private boolean isAllowUtf8() {
+		return Boolean.parseBoolean(session.getProperty("mail.mime.allowutf8")); //$NON-NLS-1$
+	}
+
+	private static boolean isInternetAddresses(Address[] addresses) {
+
+		if (addresses == null || addresses.length == 0) {
+			return false;
+		}
+
+		for (Address address : addresses) {
+			if (!(address instanceof InternetAddress)) {
+				return false;
+			}
+		}
+
+		return true;
+
+	}
+
+	private static String normalizeAddress(String address) {
+		return !address.startsWith("<") && !address.endsWith(">") ? "<" + address + ">" : address; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+
+}
@@ -0,0 +1,107 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.UUID;
+
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.internet.InternetAddress;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * A message for a single recipient which consists of a few fresh headers (From, To, Date and
+ * Message-ID) followed by the bytes of a {@link SharedBody}. Nothing is encoded when sending.
+ */
+public class PreEncodedMessage extends MimeMessage {
+
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+	private final SharedBody body;
+
+	public PreEncodedMessage(Session session, SharedBody body, Address recipient) throws MessagingException {
+		super(session);
+
+		this.body = body;
+
+		setSentDate(new Date());
+		if (body.getFrom() != null) {
+			setHeader("From", body.getFrom()); //$NON-NLS-1$
+		}
+		setRecipient(RecipientType.TO, recipient);
+		setHeader("Message-ID", createMessageId(body.getFrom())); //$NON-NLS-1$
+
+	}
+
+	@Override
+	protected void updateHeaders() throws MessagingException {
+		// The content is already encoded, there is nothing to update
+	}
+
+	@Override
+	public int getSize() throws MessagingException {
+		return body.getSize();
+	}
+
+	@Override
+	public void writeTo(OutputStream out, String[] ignoreList) throws IOException, MessagingException {
+
+		Enumeration<String> headerLines = getNonMatchingHeaderLines(ignoreList);
+		while (headerLines.hasMoreElements()) {
+			out.write(headerLines.nextElement().getBytes(StandardCharsets.UTF_8));
+			out.write(CRLF);
+		}
+
+		// The shared bytes contain the remaining headers, the empty line and the body
+		body.writeTo(out);
+
+		out.flush();
+
+	}
+
+	private static String createMessageId(String from) {
+
+		String domain = "localhost"; //$NON-NLS-1$
+
+		if (from != null) {
+			try {
+				InternetAddress[] addresses = InternetAddress.parseHeader(from, false);
+				if (addresses.length > 0 && addresses[0].getAddress() != null && addresses[0].getAddress().indexOf('@') > 0) {
+					domain = addresses[0].getAddress().substring(addresses[0].getAddress().indexOf('@') + 1);
+				}
+			} catch (Exception e) {
+				// Keep the default domain
+			}
+		}
+
+		return "<" + UUID.randomUUID().toString() + "@" + domain + ">"; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+	}
+
+}
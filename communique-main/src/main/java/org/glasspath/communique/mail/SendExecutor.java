@@ -0,0 +1,251 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glasspath.common.share.mail.account.Account;
+import org.glasspath.communique.Communique;
+import org.glasspath.communique.Configuration;
+
+/**
+ * Shared executor for all mail related background work, there is one instance per process so
+ * the limits hold for all windows and batch runs. Tasks submitted for an account are queued in
+ * order, at most maxConnectionsPerAccount of them run at the same time and they are started no
+ * faster than maxMessagesPerSecond (see {@link Configuration}). After {@link #shutdown()} all
+ * tasks which did not run are cancelled, tasks submitted after that are cancelled immediately.
+ */
+public class SendExecutor {
+
+	private static SendExecutor instance = null;
+
+	private final ExecutorService executor;
+	private final Map<String, AccountQueue> accountQueues = new HashMap<>();
+	private int maxConnectionsPerAccount = 1;
+	private double maxMessagesPerSecond = 0.0;
+	private boolean shutdown = false;
+
+	public SendExecutor() {
+
+		executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "send-executor-" + count.incrementAndGet()); //$NON-NLS-1$
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	}
+
+	/**
+	 * Returns the executor of this process, a new one is created if it was shut down.
+	 */
+	public static synchronized SendExecutor getInstance() {
+		if (instance == null || instance.isShutdown()) {
+			instance = new SendExecutor();
+		}
+		return instance;
+	}
+
+	/**
+	 * Applies the limits of the configuration, also to the accounts which already have a queue.
+	 */
+	public synchronized void configure(Configuration configuration) {
+
+		maxConnectionsPerAccount = Math.max(1, configuration.getMaxConnectionsPerAccount());
+
+		boolean rateChanged = configuration.getMaxMessagesPerSecond() != maxMessagesPerSecond;
+		maxMessagesPerSecond = configuration.getMaxMessagesPerSecond();
+
+		for (AccountQueue accountQueue : accountQueues.values()) {
+			accountQueue.maxRunning = maxConnectionsPerAccount;
+			if (rateChanged) {
+				accountQueue.tokenBucket = new TokenBucket(maxMessagesPerSecond);
+			}
+			dispatch(accountQueue);
+		}
+
+	}
+
+	/**
+	 * Runs background work that doesn't count against the limits of an account (account discovery for example).
+	 */
+	public void execute(Runnable runnable) {
+		executor.execute(runnable);
+	}
+
+	public Future<?> submit(Account account, Runnable runnable) {
+		return submit(account, Executors.callable(runnable));
+	}
+
+	public <T> Future<T> submit(Account account, Callable<T> callable) {
+
+		FutureTask<T> task = new FutureTask<>(callable);
+
+		synchronized (this) {
+
+			if (shutdown) {
+				task.cancel(false);
+				return task;
+			}
+
+			String key = account.getEmail();
+
+			AccountQueue accountQueue = accountQueues.get(key);
+			if (accountQueue == null) {
+				accountQueue = new AccountQueue(maxConnectionsPerAccount, new TokenBucket(maxMessagesPerSecond));
+				accountQueues.put(key, accountQueue);
+			}
+
+			accountQueue.pending.add(task);
+			dispatch(accountQueue);
+
+		}
+
+		return task;
+
+	}
+
+	private synchronized void dispatch(AccountQueue accountQueue) {
+
+		while (!shutdown && accountQueue.running < accountQueue.maxRunning && !accountQueue.pending.isEmpty()) {
+
+			FutureTask<?> task = accountQueue.pending.poll();
+			accountQueue.running++;
+
+			executor.execute(new AccountTask(accountQueue, task));
+
+		}
+
+	}
+
+	public synchronized boolean isShutdown() {
+		return shutdown;
+	}
+
+	/**
+	 * Interrupts running tasks and cancels all tasks which did not run yet, so nobody waits for
+	 * their result forever.
+	 */
+	public void shutdown() {
+
+		List<FutureTask<?>> cancelled = new ArrayList<>();
+
+		synchronized (this) {
+
+			shutdown = true;
+
+			for (AccountQueue accountQueue : accountQueues.values()) {
+				cancelled.addAll(accountQueue.pending);
+				accountQueue.pending.clear();
+			}
+
+			// Tasks which were handed to the executor but did not start yet
+			for (Runnable runnable : executor.shutdownNow()) {
+				if (runnable instanceof AccountTask) {
+					cancelled.add(((AccountTask) runnable).task);
+				}
+			}
+
+		}
+
+		for (FutureTask<?> task : cancelled) {
+			task.cancel(false);
+		}
+
+	}
+
+	private class AccountTask implements Runnable {
+
+		private final AccountQueue accountQueue;
+		private final FutureTask<?> task;
+
+		private AccountTask(AccountQueue accountQueue, FutureTask<?> task) {
+			this.accountQueue = accountQueue;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+
+			try {
+
+				if (!task.isCancelled()) {
+
+					TokenBucket tokenBucket;
+					synchronized (SendExecutor.this) {
+						tokenBucket = accountQueue.tokenBucket;
+					}
+
+					tokenBucket.acquire();
+					task.run();
+
+				}
+
+			} catch (InterruptedException e) {
+				task.cancel(false);
+				Thread.currentThread().interrupt();
+			} catch (Exception e) {
+				Communique.LOGGER.error("Exception while running send task", e); //$NON-NLS-1$
+			} finally {
+				synchronized (SendExecutor.this) {
+					accountQueue.running--;
+					dispatch(accountQueue);
+				}
+			}
+
+		}
+
+	}
+
+	private static class AccountQueue {
+
+		private final Deque<FutureTask<?>> pending = new ArrayDeque<>();
+		private int maxRunning;
+		private TokenBucket tokenBucket;
+		private int running = 0;
+
+		private AccountQueue(int maxRunning, TokenBucket tokenBucket) {
+			this.maxRunning = maxRunning;
+			this.tokenBucket = tokenBucket;
+		}
+
+	}
+
+}
@@ -0,0 +1,265 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.glasspath.common.share.mail.account.Account;
+import org.glasspath.communique.Communique;
+import org.glasspath.communique.Configuration;
+
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Appends sent emails to the IMAP "Sent" folder in the background so sending is reported as
+ * finished as soon as the SMTP server accepted the email. Emails that are queued for the same
+ * account are appended in batches of at most MAX_BATCH_MESSAGES (see {@link ImapAppender}, which
+ * also limits the number of bytes per APPEND command). Appends are retried a few times, only
+ * for the emails of a batch which were not appended before the failure. Emails that still could
+ * not be appended are exported as .eml files to the failed directory.
+ */
+public class SentFolderAppender {
+
+	public static final int MAX_ATTEMPTS = 3;
+	public static final int MAX_BATCH_MESSAGES = 50;
+	public static final long RETRY_DELAY = 10000;
+
+	private final File failedDir;
+	private final Configuration configuration;
+	private final ScheduledExecutorService executor;
+	private final List<AppendTask> queue = new ArrayList<>();
+	private final List<File> failedAppends = new ArrayList<>();
+
+	private int pendingCount = 0;
+
+	public SentFolderAppender(File failedDir, Configuration configuration) {
+
+		this.failedDir = failedDir;
+		this.configuration = configuration;
+
+		executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "sent-folder-appender"); //$NON-NLS-1$
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+	}
+
+	public void append(MimeMessage message, Account account, String password) {
+
+		if (account.getImapConfiguration() != null) {
+
+			synchronized (this) {
+				pendingCount++;
+			}
+
+			enqueue(new AppendTask(message, account, password), 0);
+
+		}
+
+	}
+
+	private void enqueue(AppendTask task, long delay) {
+
+		executor.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+
+				synchronized (SentFolderAppender.this) {
+					queue.add(task);
+				}
+
+				drain();
+
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+
+	}
+
+	private void drain() {
+
+		List<AppendTask> batch;
+
+		while ((batch = pollBatch()).size() > 0) {
+
+			AppendTask first = batch.get(0);
+
+			List<MimeMessage> messages = new ArrayList<>();
+			for (AppendTask task : batch) {
+				messages.add(task.message);
+				task.attempts++;
+			}
+
+			List<MimeMessage> appended = new ArrayList<>();
+
+			try {
+
+				ImapAppender.append(messages, first.account, first.password, configuration.getTimeout(), appended);
+
+				for (int i = 0; i < batch.size(); i++) {
+					finished();
+				}
+
+			} catch (Exception e) {
+
+				for (AppendTask task : batch) {
+
+					// Messages which made it before the failure must not be appended again
+					if (appended.contains(task.message)) {
+						finished();
+					} else if (task.attempts < MAX_ATTEMPTS) {
+						Communique.LOGGER.warn("Appending email to sent folder failed (attempt " + task.attempts + "): " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+						enqueue(task, RETRY_DELAY * task.attempts);
+					} else {
+						failed(task, e);
+						finished();
+					}
+
+				}
+
+			}
+
+		}
+
+	}
+
+	/**
+	 * Removes and returns the queued tasks (at most MAX_BATCH_MESSAGES) for the account of the first queued task.
+	 */
+	private synchronized List<AppendTask> pollBatch() {
+
+		List<AppendTask> batch = new ArrayList<>();
+
+		if (queue.size() > 0) {
+
+			String key = queue.get(0).getKey();
+
+			Iterator<AppendTask> iterator = queue.iterator();
+			while (iterator.hasNext() && batch.size() < MAX_BATCH_MESSAGES) {
+				AppendTask task = iterator.next();
+				if (task.getKey().equals(key)) {
+					batch.add(task);
+					iterator.remove();
+				}
+			}
+
+		}
+
+		return batch;
+
+	}
+
+	public synchronized int getPendingCount() {
+		return pendingCount;
+	}
+
+	/**
+	 * Returns the .eml files of emails that were sent but could not be appended to the "Sent" folder.
+	 */
+	public synchronized List<File> getFailedAppends() {
+		return new ArrayList<>(failedAppends);
+	}
+
+	public boolean awaitIdle(long timeout) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + timeout;
+
+		synchronized (this) {
+			while (pendingCount > 0) {
+				long remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+				wait(remaining);
+			}
+		}
+
+		return true;
+
+	}
+
+	private synchronized void finished() {
+		pendingCount--;
+		notifyAll();
+	}
+
+	private void failed(AppendTask task, Exception e) {
+
+		Communique.LOGGER.error("Giving up appending email to sent folder after " + task.attempts + " attempts", e); //$NON-NLS-1$ //$NON-NLS-2$
+
+		try {
+
+			failedDir.mkdirs();
+
+			File emlFile = new File(failedDir, System.currentTimeMillis() + "-" + Integer.toHexString(task.hashCode()) + ".eml"); //$NON-NLS-1$ //$NON-NLS-2$
+			try (FileOutputStream out = new FileOutputStream(emlFile)) {
+				task.message.writeTo(out);
+			}
+
+			synchronized (this) {
+				failedAppends.add(emlFile);
+			}
+
+		} catch (Exception ex) {
+			Communique.LOGGER.error("Exception while saving email that could not be appended to sent folder", ex); //$NON-NLS-1$
+		}
+
+	}
+
+	public void close() {
+		executor.shutdownNow();
+	}
+
+	private static class AppendTask {
+
+		private final MimeMessage message;
+		private final Account account;
+		private final String password;
+		private int attempts = 0;
+
+		private AppendTask(MimeMessage message, Account account, String password) {
+			this.message = message;
+			this.account = account;
+			this.password = password;
+		}
+
+		private String getKey() {
+			return account.getEmail() + "|" + password; //$NON-NLS-1$
+		}
+
+	}
+
+}
@@ -0,0 +1,76 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * The encoded header and body bytes of a message which are the same for every recipient,
+ * used for sending the same email individually to many recipients. Instances are immutable
+ * and can be shared between threads.
+ */
+public class SharedBody {
+
+	// Headers which are written per recipient by PreEncodedMessage
+	public static final String[] RECIPIENT_HEADERS = new String[] { "From", "To", "Cc", "Bcc", "Date", "Message-ID" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+
+	private final byte[] bytes;
+	private final String from;
+
+	private SharedBody(byte[] bytes, String from) {
+		this.bytes = bytes;
+		this.from = from;
+	}
+
+	public String getFrom() {
+		return from;
+	}
+
+	public int getSize() {
+		return bytes.length;
+	}
+
+	public void writeTo(OutputStream out) throws IOException {
+		out.write(bytes);
+	}
+
+	/**
+	 * Encodes the given message once, the recipient headers are left out.
+	 */
+	public static SharedBody encode(MimeMessage message) throws MessagingException, IOException {
+
+		message.saveChanges();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		message.writeTo(out, RECIPIENT_HEADERS);
+
+		return new SharedBody(out.toByteArray(), message.getHeader("From", ",")); //$NON-NLS-1$ //$NON-NLS-2$
+
+	}
+
+}
@@ -0,0 +1,478 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.glasspath.common.share.mail.Mailable;
+import org.glasspath.common.share.mail.Smtp;
+import org.glasspath.common.share.mail.account.Account;
+import org.glasspath.common.share.mail.account.SmtpConfiguration;
+import org.glasspath.communique.Communique;
+import org.glasspath.communique.Configuration;
+import org.simplejavamail.converter.EmailConverter;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+import jakarta.mail.Address;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Session;
+import jakarta.mail.Transport;
+import jakarta.mail.internet.MimeMessage;
+
+/**
+ * Keeps authenticated SMTP connections alive so consecutive messages for the same account don't
+ * have to connect, negotiate TLS and authenticate again. Connections are checked with NOOP before
+ * they are reused and are closed when they have been idle or open for too long.
+ */
+public class SmtpTransportPool {
+
+	private final Configuration configuration;
+	private final Map<String, Session> sessions = new HashMap<>();
+	private final Map<String, Deque<PooledTransport>> idleTransports = new HashMap<>();
+	private final ScheduledExecutorService evictor;
+
+	private boolean closed = false;
+
+	public SmtpTransportPool(Configuration configuration) {
+
+		this.configuration = configuration;
+
+		evictor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "smtp-pool-evictor"); //$NON-NLS-1$
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		long interval = Math.max(1000, configuration.getSmtpIdleTimeout() / 2);
+		evictor.scheduleWithFixedDelay(new Runnable() {
+
+			@Override
+			public void run() {
+				evict();
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+
+	}
+
+	/**
+	 * Creates and sends the message for the given mailable, returns the sent message or null
+	 * if no message could be created.
+	 */
+	public MimeMessage send(Mailable mailable, Account account, String password) throws Exception {
+
+		MimeMessage message = createMimeMessage(mailable, account);
+		if (message != null) {
+			send(message, account, password);
+		}
+
+		return message;
+
+	}
+
+	/**
+	 * Large attachments are left out when converting through simplejavamail (which would load
+	 * them into memory) and are added as parts which are encoded from disk while sending.
+	 */
+	public MimeMessage createMimeMessage(Mailable mailable, Account account) throws Exception {
+
+		List<File> attachments = new ArrayList<>();
+
+		if (mailable.getAttachments() != null) {
+			for (String attachment : mailable.getAttachments()) {
+				attachments.add(new File(attachment));
+			}
+		}
+
+		if (attachments.size() == 0 || !isStreaming(mailable)) {
+
+			org.simplejavamail.api.email.Email simpleEmail = InlineMailable.createSimpleEmail(mailable, account);
+			return simpleEmail != null ? EmailConverter.emailToMimeMessage(simpleEmail, getSession(account)) : null;
+
+		} else {
+
+			Mailable body = mailable instanceof InlineMailable ? new InlineMailable(((InlineMailable) mailable).getImageData()) : new Mailable();
+			body.setTo(mailable.getTo());
+			body.setCc(mailable.getCc());
+			body.setBcc(mailable.getBcc());
+			body.setSubject(mailable.getSubject());
+			body.setText(mailable.getText());
+			body.setHtml(mailable.getHtml());
+			body.setImages(mailable.getImages());
+
+			org.simplejavamail.api.email.Email simpleEmail = InlineMailable.createSimpleEmail(body, account);
+			if (simpleEmail == null) {
+				return null;
+			}
+
+			MimeMessage message = EmailConverter.emailToMimeMessage(simpleEmail, getSession(account));
+			StreamingAttachmentPart.attach(message, attachments);
+
+			return message;
+
+		}
+
+	}
+
+	/**
+	 * Returns true if the attachments of the given mailable are large enough to be encoded
+	 * from disk while sending instead of in memory.
+	 */
+	public boolean isStreaming(Mailable mailable) {
+
+		long size = 0;
+
+		if (mailable.getAttachments() != null) {
+			for (String attachment : mailable.getAttachments()) {
+				size += new File(attachment).length();
+			}
+		}
+
+		return size > 0 && size >= configuration.getStreamingAttachmentThreshold();
+
+	}
+
+	/**
+	 * Creates one message per recipient (To, Cc and Bcc), the body and attachments are encoded
+	 * only once and shared by all messages. When the attachments are streamed from disk they
+	 * are not encoded in memory, every message then gets its own streaming parts instead.
+	 */
+	public List<MimeMessage> createIndividualMessages(Mailable mailable, Account account) throws Exception {
+
+		List<MimeMessage> messages = new ArrayList<>();
+
+		MimeMessage message = createMimeMessage(mailable, account);
+		if (message != null) {
+
+			Address[] recipients = message.getAllRecipients();
+			if (recipients != null && isStreaming(mailable)) {
+
+				for (int i = 0; i < recipients.length; i++) {
+
+					MimeMessage recipientMessage = i == 0 ? message : createMimeMessage(mailable, account);
+					recipientMessage.removeHeader("Cc"); //$NON-NLS-1$
+					recipientMessage.removeHeader("Bcc"); //$NON-NLS-1$
+					recipientMessage.setRecipient(MimeMessage.RecipientType.TO, recipients[i]);
+
+					messages.add(recipientMessage);
+
+				}
+
+			} else if (recipients != null) {
+
+				SharedBody body = SharedBody.encode(message);
+				Session session = getSession(account);
+
+				for (Address recipient : recipients) {
+					messages.add(new PreEncodedMessage(session, body, recipient));
+				}
+
+			}
+
+		}
+
+		return messages;
+
+	}
+
+	public MimeMessage send(org.simplejavamail.api.email.Email simpleEmail, Account account, String password) throws MessagingException {
+
+		MimeMessage message = EmailConverter.emailToMimeMessage(simpleEmail, getSession(account));
+		send(message, account, password);
+
+		return message;
+
+	}
+
+	public void send(MimeMessage message, Account account, String password) throws MessagingException {
+
+		PooledTransport pooledTransport = borrow(account, password);
+		boolean reusable = true;
+
+		try {
+
+			message.saveChanges();
+			pooledTransport.transport.sendMessage(message, message.getAllRecipients());
+
+		} catch (MessagingException e) {
+
+			// The state of the connection is unknown after a failed transaction, only reuse it if it accepts a reset
+			reusable = reset(pooledTransport);
+
+			throw e;
+
+		} finally {
+
+			if (reusable) {
+				release(pooledTransport);
+			} else {
+				closeQuietly(pooledTransport);
+			}
+
+		}
+
+	}
+
+	public synchronized Session getSession(Account account) {
+
+		String key = createKey(account);
+
+		Session session = sessions.get(key);
+		if (session == null) {
+			session = Session.getInstance(createProperties(account.getSmtpConfiguration(), configuration.getTimeout()));
+			sessions.put(key, session);
+		}
+
+		return session;
+
+	}
+
+	private PooledTransport borrow(Account account, String password) throws MessagingException {
+
+		String key = createKey(account);
+
+		PooledTransport pooledTransport;
+		while ((pooledTransport = poll(key)) != null) {
+
+			if (!Objects.equals(pooledTransport.password, password) || isExpired(pooledTransport, System.currentTimeMillis())) {
+				closeQuietly(pooledTransport);
+			} else if (pooledTransport.transport.isConnected()) {
+				// SMTPTransport.isConnected() sends a NOOP to verify the connection
+				return pooledTransport;
+			} else {
+				closeQuietly(pooledTransport);
+			}
+
+		}
+
+		SmtpConfiguration smtpConfiguration = account.getSmtpConfiguration();
+
+		Session session = getSession(account);
+
+		Transport transport;
+		if (configuration.isSmtpPipeliningEnabled()) {
+			transport = new PipeliningSmtpTransport(session, "smtps".equals(session.getProperty("mail.transport.protocol"))); //$NON-NLS-1$ //$NON-NLS-2$
+		} else {
+			transport = session.getTransport();
+		}
+		transport.connect(smtpConfiguration.getHost(), smtpConfiguration.getPort(), account.getEmail(), password);
+
+		return new PooledTransport(key, transport, password);
+
+	}
+
+	private synchronized PooledTransport poll(String key) {
+		Deque<PooledTransport> deque = idleTransports.get(key);
+		return deque != null ? deque.pollFirst() : null;
+	}
+
+	private void release(PooledTransport pooledTransport) {
+
+		synchronized (this) {
+
+			if (!closed && !isExpired(pooledTransport, System.currentTimeMillis())) {
+
+				pooledTransport.lastUsed = System.currentTimeMillis();
+
+				Deque<PooledTransport> deque = idleTransports.get(pooledTransport.key);
+				if (deque == null) {
+					deque = new ArrayDeque<>();
+					idleTransports.put(pooledTransport.key, deque);
+				}
+				deque.addFirst(pooledTransport);
+
+				return;
+
+			}
+
+		}
+
+		closeQuietly(pooledTransport);
+
+	}
+
+	private boolean reset(PooledTransport pooledTransport) {
+
+		if (pooledTransport.transport instanceof SMTPTransport && pooledTransport.transport.isConnected()) {
+			try {
+				((SMTPTransport) pooledTransport.transport).issueCommand("RSET", 250); //$NON-NLS-1$
+				return true;
+			} catch (MessagingException e) {
+				Communique.LOGGER.warn("RSET failed, closing connection: " + e.getMessage()); //$NON-NLS-1$
+			}
+		}
+
+		return false;
+
+	}
+
+	private boolean isExpired(PooledTransport pooledTransport, long now) {
+		return now - pooledTransport.created > configuration.getSmtpMaxConnectionAge() || now - pooledTransport.lastUsed > configuration.getSmtpIdleTimeout();
+	}
+
+	private void evict() {
+
+		List<PooledTransport> expired = new ArrayList<>();
+
+		synchronized (this) {
+
+			long now = System.currentTimeMillis();
+
+			for (Entry<String, Deque<PooledTransport>> entry : idleTransports.entrySet()) {
+
+				Iterator<PooledTransport> iterator = entry.getValue().iterator();
+				while (iterator.hasNext()) {
+
+					PooledTransport pooledTransport = iterator.next();
+					if (isExpired(pooledTransport, now)) {
+						iterator.remove();
+						expired.add(pooledTransport);
+					}
+
+				}
+
+			}
+
+		}
+
+		for (PooledTransport pooledTransport : expired) {
+			closeQuietly(pooledTransport);
+		}
+
+	}
+
+	public void close() {
+
+		List<PooledTransport> open = new ArrayList<>();
+
+		synchronized (this) {
+
+			closed = true;
+
+			for (Deque<PooledTransport> deque : idleTransports.values()) {
+				open.addAll(deque);
+			}
+			idleTransports.clear();
+
+		}
+
+		evictor.shutdownNow();
+
+		for (PooledTransport pooledTransport : open) {
+			closeQuietly(pooledTransport);
+		}
+
+	}
+
+	private static void closeQuietly(PooledTransport pooledTransport) {
+		try {
+			pooledTransport.transport.close();
+		} catch (Exception e) {
+			Communique.LOGGER.warn("Exception while closing smtp connection: " + e.getMessage()); //$NON-NLS-1$
+		}
+	}
+
+	private static String createKey(Account account) {
+		SmtpConfiguration smtpConfiguration = account.getSmtpConfiguration();
+		return account.getEmail() + "|" + smtpConfiguration.getHost() + "|" + smtpConfiguration.getPort() + "|" + smtpConfiguration.getProtocol(); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	public static Properties createProperties(SmtpConfiguration smtpConfiguration, int timeout) {
+
+		// Same transport strategies as simplejavamail: SMTP upgrades to TLS when the server offers it,
+		// SMTP_TLS requires STARTTLS and SMTPS connects over SSL
+		Smtp.Protocol protocol = smtpConfiguration.getProtocol() != null ? smtpConfiguration.getProtocol() : Smtp.Protocol.SMTP;
+		boolean ssl = protocol == Smtp.Protocol.SMTPS;
+
+		String name = ssl ? "smtps" : "smtp"; //$NON-NLS-1$ //$NON-NLS-2$
+
+		Properties properties = new Properties();
+		properties.put("mail.transport.protocol", name); //$NON-NLS-1$
+		properties.put("mail." + name + ".host", smtpConfiguration.getHost()); //$NON-NLS-1$ //$NON-NLS-2$
+		properties.put("mail." + name + ".port", String.valueOf(smtpConfiguration.getPort())); //$NON-NLS-1$ //$NON-NLS-2$
+		properties.put("mail." + name + ".auth", "true"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		properties.put("mail." + name + ".connectiontimeout", String.valueOf(timeout)); //$NON-NLS-1$ //$NON-NLS-2$
+		properties.put("mail." + name + ".timeout", String.valueOf(timeout)); //$NON-NLS-1$ //$NON-NLS-2$
+		properties.put("mail." + name + ".writetimeout", String.valueOf(timeout)); //$NON-NLS-1$ //$NON-NLS-2$
+
+		switch (protocol) {
+
+		case SMTPS:
+			properties.put("mail.smtps.ssl.checkserveridentity", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+			break;
+
+		case SMTP_TLS:
+			properties.put("mail.smtp.starttls.enable", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+			properties.put("mail.smtp.starttls.required", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+			properties.put("mail.smtp.ssl.checkserveridentity", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+			break;
+
+		default:
+			// Opportunistic, credentials are only sent in cleartext if the server doesn't offer STARTTLS
+			properties.put("mail.smtp.starttls.enable", "true"); //$NON-NLS-1$ //$NON-NLS-2$
+			properties.put("mail.smtp.starttls.required", "false"); //$NON-NLS-1$ //$NON-NLS-2$
+			break;
+
+		}
+
+		return properties;
+
+	}
+
+	private static class PooledTransport {
+
+		private final String key;
+		private final Transport transport;
+		private final String password;
+		private final long created;
+		private long lastUsed;
+
+		private PooledTransport(String key, Transport transport, String password) {
+			this.key = key;
+			this.transport = transport;
+			this.password = password;
+			this.created = System.currentTimeMillis();
+			this.lastUsed = created;
+		}
+
+	}
+
+}
@@ -0,0 +1,159 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Enumeration;
+import java.util.List;
+
+import jakarta.activation.DataHandler;
+import jakarta.activation.FileDataSource;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.MimeMessage;
+import jakarta.mail.internet.MimeMultipart;
+
+/**
+ * An attachment which is read from disk and base64 encoded in fixed-size chunks while the
+ * message is written to the transport, heap use doesn't depend on the size of the file.
+ */
+public class StreamingAttachmentPart extends MimeBodyPart {
+
+	// A multiple of 57 bytes so every chunk encodes to complete 76 character lines
+	public static final int CHUNK_SIZE = 57 * 1024;
+
+	private static final byte[] CRLF = new byte[] { '\r', '\n' };
+
+	private final File file;
+
+	public StreamingAttachmentPart(File file) throws MessagingException {
+
+		this.file = file;
+
+		setDataHandler(new DataHandler(new FileDataSource(file)));
+		setFileName(file.getName());
+		setDisposition(Part.ATTACHMENT);
+
+		// Set explicitly, otherwise updateHeaders() reads the whole file to choose an encoding
+		setHeader("Content-Transfer-Encoding", "base64"); //$NON-NLS-1$ //$NON-NLS-2$
+
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException, MessagingException {
+
+		Enumeration<String> headerLines = getAllHeaderLines();
+		while (headerLines.hasMoreElements()) {
+			out.write(headerLines.nextElement().getBytes(StandardCharsets.UTF_8));
+			out.write(CRLF);
+		}
+		out.write(CRLF);
+
+		Base64.Encoder encoder = Base64.getMimeEncoder();
+		ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+		byte[] encoded = new byte[encodedLength(CHUNK_SIZE)];
+		boolean first = true;
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+
+			while (true) {
+
+				// Fill the whole chunk so line breaks stay aligned
+				buffer.clear();
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						break;
+					}
+				}
+
+				if (buffer.position() == 0) {
+					break;
+				}
+
+				byte[] chunk = buffer.position() == CHUNK_SIZE ? buffer.array() : Arrays.copyOf(buffer.array(), buffer.position());
+				int length = encoder.encode(chunk, encoded);
+
+				if (!first) {
+					out.write(CRLF);
+				}
+				out.write(encoded, 0, length);
+				first = false;
+
+				if (buffer.position() < CHUNK_SIZE) {
+					break;
+				}
+
+			}
+
+		}
+
+	}
+
+	private static int encodedLength(int size) {
+		int chars = 4 * ((size + 2) / 3);
+		return chars + 2 * (chars / 76);
+	}
+
+	/**
+	 * Moves the current content of the message into a multipart/mixed body and adds the
+	 * files as streaming attachments.
+	 */
+	public static void attach(MimeMessage message, List<File> files) throws MessagingException, IOException {
+
+		Object content = message.getContent();
+
+		MimeBodyPart bodyPart = new MimeBodyPart();
+		if (content instanceof Multipart) {
+			bodyPart.setContent((Multipart) content);
+		} else {
+			bodyPart.setContent(content, message.getContentType());
+		}
+
+		message.removeHeader("Content-Transfer-Encoding"); //$NON-NLS-1$
+
+		MimeMultipart mixed = new MimeMultipart("mixed"); //$NON-NLS-1$
+		mixed.addBodyPart(bodyPart);
+
+		for (File file : files) {
+			mixed.addBodyPart(new StreamingAttachmentPart(file));
+		}
+
+		message.setContent(mixed);
+
+	}
+
+}
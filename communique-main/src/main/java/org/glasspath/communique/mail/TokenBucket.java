@@ -0,0 +1,79 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter, a rate of 0 or less disables limiting. The bucket holds at most
+ * one second worth of tokens so short bursts are allowed but the average rate is not exceeded.
+ */
+public class TokenBucket {
+
+	private final double rate;
+	private final double capacity;
+
+	private double tokens;
+	private long lastRefill;
+
+	public TokenBucket(double rate) {
+		this.rate = rate;
+		this.capacity = Math.max(1.0, Math.ceil(rate));
+		this.tokens = capacity;
+		this.lastRefill = System.nanoTime();
+	}
+
+	public double getRate() {
+		return rate;
+	}
+
+	public void acquire() throws InterruptedException {
+
+		if (rate <= 0) {
+			return;
+		}
+
+		long waitNanos;
+
+		synchronized (this) {
+
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - lastRefill) * rate / TimeUnit.SECONDS.toNanos(1));
+			lastRefill = now;
+
+			// The token is reserved before waiting, tokens can become negative which
+			// makes callers that arrive while we are waiting queue up behind us
+			tokens -= 1.0;
+			if (tokens >= 0.0) {
+				return;
+			}
+
+			waitNanos = (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+
+		}
+
+		TimeUnit.NANOSECONDS.sleep(waitNanos);
+
+	}
+
+}
@@ -0,0 +1,575 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.media;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.glasspath.aerialist.media.MediaCache.ImageResource;
+import org.glasspath.communique.Communique;
+import org.glasspath.communique.Configuration;
+
+/**
+ * Makes images smaller before they are sent: images wider than the maximum width are scaled
+ * down, photos are encoded as JPEG and images with transparency or few colors (screenshots,
+ * diagrams) as PNG. Results are cached by content hash and images are processed in parallel.
+ * The EXIF orientation of JPEG images is applied to the pixels because the re-encoded image
+ * has no EXIF data, JPEG images with an embedded color profile are never re-encoded.
+ */
+public class ImageOptimizer {
+
+	public static final long MAX_CACHE_SIZE = 64L * 1024L * 1024L;
+
+	private static final String FORMAT_PNG = "png"; //$NON-NLS-1$
+	private static final String FORMAT_JPEG = "jpeg"; //$NON-NLS-1$
+
+	// Images with fewer distinct colors than this fraction of the sampled pixels are considered flat
+	private static final double FLAT_COLOR_RATIO = 0.1;
+	private static final int MAX_SAMPLES = 10000;
+
+	private static ImageOptimizer instance = null;
+
+	private final Map<String, byte[]> cache = new LinkedHashMap<>(16, 0.75F, true);
+	private final Set<ImageResource> prepared = Collections.newSetFromMap(new WeakHashMap<ImageResource, Boolean>());
+	private long cacheSize = 0;
+	private volatile boolean enabled = true;
+	private volatile int maxWidth = 1200;
+	private volatile float quality = 0.85F;
+
+	public static synchronized ImageOptimizer getInstance() {
+		if (instance == null) {
+			instance = new ImageOptimizer();
+		}
+		return instance;
+	}
+
+	public void configure(Configuration configuration) {
+		enabled = configuration.isImageOptimizationEnabled();
+		maxWidth = configuration.getMaxImageWidth();
+		quality = configuration.getImageQuality();
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Optimizes images which were not seen before on the common pool, so the results are cached
+	 * when the email is sent. Called when images are inserted in the editor.
+	 */
+	public void prepare(Map<String, ImageResource> imageResources) {
+
+		if (!enabled) {
+			return;
+		}
+
+		for (final ImageResource imageResource : imageResources.values()) {
+
+			synchronized (prepared) {
+				if (!prepared.add(imageResource)) {
+					continue;
+				}
+			}
+
+			ForkJoinPool.commonPool().execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						byte[] bytes = imageResource.getBytes();
+						if (bytes != null) {
+							optimize(bytes, true);
+							optimize(bytes, false);
+						}
+					} catch (Exception e) {
+						Communique.LOGGER.warn("Exception while preparing image", e); //$NON-NLS-1$
+					}
+				}
+			});
+
+		}
+
+	}
+
+	/**
+	 * Optimizes all images in parallel, the keys of the returned map are the same as the given
+	 * keys. When formatChangeAllowed is false images keep their original format.
+	 */
+	public Map<String, byte[]> optimize(Map<String, byte[]> images, boolean formatChangeAllowed) {
+
+		Map<String, byte[]> result = new LinkedHashMap<>();
+
+		if (!enabled || images.size() == 0) {
+			result.putAll(images);
+			return result;
+		}
+
+		List<Callable<byte[]>> tasks = new ArrayList<>();
+		for (Entry<String, byte[]> entry : images.entrySet()) {
+			tasks.add(new Callable<byte[]>() {
+
+				@Override
+				public byte[] call() throws Exception {
+					return optimize(entry.getValue(), formatChangeAllowed);
+				}
+			});
+		}
+
+		List<Future<byte[]>> futures = ForkJoinPool.commonPool().invokeAll(tasks);
+
+		int i = 0;
+		for (Entry<String, byte[]> entry : images.entrySet()) {
+
+			byte[] bytes = entry.getValue();
+
+			try {
+				bytes = futures.get(i).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				Communique.LOGGER.warn("Exception while optimizing image: " + entry.getKey(), e.getCause()); //$NON-NLS-1$
+			}
+
+			result.put(entry.getKey(), bytes);
+			i++;
+
+		}
+
+		return result;
+
+	}
+
+	/**
+	 * Returns the optimized image, or the given bytes if optimizing doesn't make the image smaller.
+	 */
+	public byte[] optimize(byte[] bytes, boolean formatChangeAllowed) throws IOException {
+
+		int maxWidth = this.maxWidth;
+		float quality = this.quality;
+
+		String key = ImageStore.hash(bytes) + ":" + maxWidth + ":" + quality + ":" + formatChangeAllowed; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		synchronized (cache) {
+			byte[] cached = cache.get(key);
+			if (cached != null) {
+				return cached;
+			}
+		}
+
+		byte[] optimized = bytes;
+
+		String originalFormat = getFormat(bytes);
+
+		int orientation = 1;
+		boolean colorProfile = false;
+		if (FORMAT_JPEG.equals(originalFormat)) {
+			JpegInfo info = JpegInfo.read(bytes);
+			orientation = info.orientation;
+			colorProfile = info.colorProfile;
+		}
+
+		if ((FORMAT_PNG.equals(originalFormat) || FORMAT_JPEG.equals(originalFormat)) && !colorProfile) {
+
+			BufferedImage image = ImageIO.read(new ByteArrayInputStream(bytes));
+			if (image != null && orientation > 1) {
+				image = orient(image, orientation);
+			}
+
+			if (image != null) {
+
+				boolean scale = maxWidth > 0 && image.getWidth() > maxWidth;
+
+				String format = originalFormat;
+				if (formatChangeAllowed) {
+					format = hasTransparency(image) || isFlat(image) ? FORMAT_PNG : FORMAT_JPEG;
+				}
+
+				// Re-encoding a PNG at the same size doesn't make it smaller, a JPEG with a lower quality does
+				if (scale || !format.equals(originalFormat) || FORMAT_JPEG.equals(format)) {
+
+					if (scale) {
+						image = scale(image, maxWidth);
+					}
+
+					byte[] encoded = FORMAT_JPEG.equals(format) ? encodeJpeg(image, quality) : encodePng(image);
+					if (encoded.length < bytes.length) {
+						optimized = encoded;
+					}
+
+				}
+
+			}
+
+		}
+
+		synchronized (cache) {
+
+			byte[] previous = cache.put(key, optimized);
+			cacheSize += optimized.length - (previous != null ? previous.length : 0);
+
+			Iterator<byte[]> iterator = cache.values().iterator();
+			while (cacheSize > MAX_CACHE_SIZE && iterator.hasNext()) {
+				cacheSize -= iterator.next().length;
+				iterator.remove();
+			}
+
+		}
+
+		return optimized;
+
+	}
+
+	private static String getFormat(byte[] bytes) throws IOException {
+
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(bytes))) {
+
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (readers.hasNext()) {
+
+				String format = readers.next().getFormatName().toLowerCase();
+				if ("jpg".equals(format)) { //$NON-NLS-1$
+					format = FORMAT_JPEG;
+				}
+
+				return format;
+
+			}
+
+		}
+
+		return null;
+
+	}
+
+	private static boolean hasTransparency(BufferedImage image) {
+
+		if (!image.getColorModel().hasAlpha()) {
+			return false;
+		}
+
+		int step = Math.max(1, (int) Math.sqrt((double) image.getWidth() * image.getHeight() / MAX_SAMPLES));
+		for (int y = 0; y < image.getHeight(); y += step) {
+			for (int x = 0; x < image.getWidth(); x += step) {
+				if ((image.getRGB(x, y) >>> 24) != 0xFF) {
+					return true;
+				}
+			}
+		}
+
+		return false;
+
+	}
+
+	private static boolean isFlat(BufferedImage image) {
+
+		int step = Math.max(1, (int) Math.sqrt((double) image.getWidth() * image.getHeight() / MAX_SAMPLES));
+
+		Set<Integer> colors = new HashSet<>();
+		int samples = 0;
+
+		for (int y = 0; y < image.getHeight(); y += step) {
+			for (int x = 0; x < image.getWidth(); x += step) {
+				colors.add(image.getRGB(x, y) & 0xFFFFFF);
+				samples++;
+			}
+		}
+
+		return colors.size() < samples * FLAT_COLOR_RATIO;
+
+	}
+
+	/**
+	 * Applies an EXIF orientation (2 - 8) to the pixels.
+	 */
+	static BufferedImage orient(BufferedImage image, int orientation) {
+
+		int width = image.getWidth();
+		int height = image.getHeight();
+		boolean swap = orientation >= 5;
+
+		AffineTransform transform = new AffineTransform();
+		switch (orientation) {
+		case 2:
+			transform.translate(width, 0);
+			transform.scale(-1.0, 1.0);
+			break;
+		case 3:
+			transform.translate(width, height);
+			transform.rotate(Math.PI);
+			break;
+		case 4:
+			transform.translate(0, height);
+			transform.scale(1.0, -1.0);
+			break;
+		case 5:
+			transform.rotate(Math.PI / 2);
+			transform.scale(1.0, -1.0);
+			break;
+		case 6:
+			transform.translate(height, 0);
+			transform.rotate(Math.PI / 2);
+			break;
+		case 7:
+			transform.translate(height, width);
+			transform.rotate(-Math.PI / 2);
+			transform.scale(1.0, -1.0);
+			break;
+		case 8:
+			transform.translate(0, width);
+			transform.rotate(-Math.PI / 2);
+			break;
+		default:
+			return image;
+		}
+
+		int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage oriented = new BufferedImage(swap ? height : width, swap ? width : height, type);
+
+		Graphics2D g2d = oriented.createGraphics();
+		g2d.drawImage(image, transform, null);
+		g2d.dispose();
+
+		return oriented;
+
+	}
+
+	/**
+	 * Scales down in steps of at most 50%, a single bilinear step loses too much detail.
+	 */
+	private static BufferedImage scale(BufferedImage image, int targetWidth) {
+
+		int targetHeight = Math.max(1, (int) Math.round((double) image.getHeight() * targetWidth / image.getWidth()));
+		int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+		BufferedImage scaled = image;
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		do {
+
+			width = Math.max(targetWidth, width / 2);
+			height = Math.max(targetHeight, height / 2);
+
+			BufferedImage step = new BufferedImage(width, height, type);
+			Graphics2D g2d = step.createGraphics();
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g2d.drawImage(scaled, 0, 0, width, height, null);
+			g2d.dispose();
+
+			scaled = step;
+
+		} while (width != targetWidth || height != targetHeight);
+
+		return scaled;
+
+	}
+
+	/**
+	 * The EXIF orientation and whether an ICC profile is embedded, read from the APP1 and APP2
+	 * segments of a JPEG image.
+	 */
+	static class JpegInfo {
+
+		private static final byte[] EXIF = new byte[] { 'E', 'x', 'i', 'f', 0, 0 };
+		private static final byte[] ICC_PROFILE = new byte[] { 'I', 'C', 'C', '_', 'P', 'R', 'O', 'F', 'I', 'L', 'E', 0 };
+
+		int orientation = 1;
+		boolean colorProfile = false;
+
+		static JpegInfo read(byte[] bytes) {
+
+			JpegInfo info = new JpegInfo();
+
+			if (bytes.length < 4 || (bytes[0] & 0xFF) != 0xFF || (bytes[1] & 0xFF) != 0xD8) {
+				return info;
+			}
+
+			int offset = 2;
+			while (offset + 4 <= bytes.length && (bytes[offset] & 0xFF) == 0xFF) {
+
+				int marker = bytes[offset + 1] & 0xFF;
+				if (marker == 0xDA || marker == 0xD9) {
+					break; // Start of scan or end of image, metadata comes before these
+				} else if (marker == 0xFF || (marker >= 0xD0 && marker <= 0xD7) || marker == 0x01) {
+					offset++; // Fill byte or marker without length
+					continue;
+				}
+
+				int length = ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+				int start = offset + 4;
+				int end = offset + 2 + length;
+				if (length < 2 || end > bytes.length) {
+					break;
+				}
+
+				if (marker == 0xE1 && startsWith(bytes, start, end, EXIF)) {
+					info.orientation = readOrientation(bytes, start + EXIF.length, end);
+				} else if (marker == 0xE2 && startsWith(bytes, start, end, ICC_PROFILE)) {
+					info.colorProfile = true;
+				}
+
+				offset = end;
+
+			}
+
+			return info;
+
+		}
+
+		private static boolean startsWith(byte[] bytes, int start, int end, byte[] prefix) {
+
+			if (end - start < prefix.length) {
+				return false;
+			}
+
+			for (int i = 0; i < prefix.length; i++) {
+				if (bytes[start + i] != prefix[i]) {
+					return false;
+				}
+			}
+
+			return true;
+
+		}
+
+		/**
+		 * Reads tag 0x0112 from IFD0 of the TIFF structure which starts at the given offset.
+		 */
+		private static int readOrientation(byte[] bytes, int tiff, int end) {
+
+			if (end - tiff < 8) {
+				return 1;
+			}
+
+			boolean littleEndian = bytes[tiff] == 'I' && bytes[tiff + 1] == 'I';
+			if (!littleEndian && !(bytes[tiff] == 'M' && bytes[tiff + 1] == 'M')) {
+				return 1;
+			}
+
+			int ifd = tiff + readInt(bytes, tiff + 4, littleEndian);
+			if (ifd < tiff || ifd + 2 > end) {
+				return 1;
+			}
+
+			int entries = readShort(bytes, ifd, littleEndian);
+			for (int i = 0; i < entries; i++) {
+
+				int entry = ifd + 2 + 12 * i;
+				if (entry + 12 > end) {
+					break;
+				}
+
+				if (readShort(bytes, entry, littleEndian) == 0x0112) {
+					int orientation = readShort(bytes, entry + 8, littleEndian);
+					return orientation >= 1 && orientation <= 8 ? orientation : 1;
+				}
+
+			}
+
+			return 1;
+
+		}
+
+		private static int readShort(byte[] bytes, int offset, boolean littleEndian) {
+			int b0 = bytes[offset] & 0xFF;
+			int b1 = bytes[offset + 1] & 0xFF;
+			return littleEndian ? (b1 << 8) | b0 : (b0 << 8) | b1;
+		}
+
+		private static int readInt(byte[] bytes, int offset, boolean littleEndian) {
+			int s0 = readShort(bytes, offset, littleEndian);
+			int s1 = readShort(bytes, offset + 2, littleEndian);
+			return littleEndian ? (s1 << 16) | s0 : (s0 << 16) | s1;
+		}
+
+	}
+
+	private static byte[] encodePng(BufferedImage image) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, FORMAT_PNG, out);
+		return out.toByteArray();
+	}
+
+	private static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+
+		// JPEG has no alpha channel, transparent pixels become white
+		if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+			BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+			Graphics2D g2d = rgb.createGraphics();
+			g2d.setColor(Color.white);
+			g2d.fillRect(0, 0, image.getWidth(), image.getHeight());
+			g2d.drawImage(image, 0, 0, null);
+			g2d.dispose();
+			image = rgb;
+		}
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName(FORMAT_JPEG).next();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		try (ImageOutputStream imageOut = ImageIO.createImageOutputStream(out)) {
+
+			ImageWriteParam param = writer.getDefaultWriteParam();
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+
+			writer.setOutput(imageOut);
+			writer.write(null, new IIOImage(image, null, null), param);
+
+		} finally {
+			writer.dispose();
+		}
+
+		return out.toByteArray();
+
+	}
+
+}
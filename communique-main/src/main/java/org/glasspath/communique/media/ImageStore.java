@@ -0,0 +1,324 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.glasspath.communique.Communique;
+import org.glasspath.communique.CommuniqueUtils;
+
+/**
+ * Stores image files which are handed to mail clients and SMTP by path. Files are stored under
+ * the SHA-256 hash of their content so identical images are written only once, the store is
+ * kept below a maximum size and files which haven't been used for a while are removed. The
+ * directory is shared by all processes: every write goes through a temporary file of its own,
+ * sizes are taken from disk and the last use is checked on disk again before removing a file.
+ */
+public class ImageStore {
+
+	public static final long DEFAULT_MAX_SIZE = 256L * 1024L * 1024L;
+	public static final long DEFAULT_MAX_AGE = 7L * 24L * 60L * 60L * 1000L;
+
+	// Recently used files are never evicted, a mail client may still need them (the outbox keeps its own copies)
+	public static final long MIN_AGE = 60L * 60L * 1000L;
+
+	private static final String TEMP_EXTENSION = ".tmp"; //$NON-NLS-1$
+
+	private static ImageStore instance = null;
+
+	private final File dir;
+	private final long maxSize;
+	private final long maxAge;
+	private final Map<String, StoredImage> images = new LinkedHashMap<>(16, 0.75F, true);
+	private long size = 0;
+	private boolean loaded = false;
+
+	public ImageStore(File dir, long maxSize, long maxAge) {
+		this.dir = dir;
+		this.maxSize = maxSize;
+		this.maxAge = maxAge;
+	}
+
+	public static synchronized ImageStore getInstance() {
+		if (instance == null) {
+			instance = new ImageStore(new File(CommuniqueUtils.getTempDir(), "images"), DEFAULT_MAX_SIZE, DEFAULT_MAX_AGE); //$NON-NLS-1$
+		}
+		return instance;
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public synchronized long getSize() {
+		load();
+		return size;
+	}
+
+	/**
+	 * Returns a file with the given name containing the given bytes, the file is only
+	 * written if the same bytes are not already stored under that name.
+	 */
+	public synchronized File store(String name, byte[] bytes) throws IOException {
+
+		load();
+
+		String hash = hash(bytes);
+		long now = System.currentTimeMillis();
+
+		File imageDir = new File(dir, hash);
+		File file = new File(imageDir, name);
+
+		// The file may also have been written (or removed) by another process
+		if (!file.isFile() || file.length() != bytes.length) {
+
+			if (!imageDir.exists()) {
+				imageDir.mkdirs();
+			}
+
+			// Written to a temporary file first so readers never see a partial image, the name is
+			// unique because other processes may be storing the same image at the same time
+			Path tempFile = Files.createTempFile(imageDir.toPath(), null, TEMP_EXTENSION);
+			try {
+				Files.write(tempFile, bytes);
+				Files.move(tempFile, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				Files.deleteIfExists(tempFile);
+			}
+
+		}
+
+		file.setLastModified(now);
+
+		StoredImage image = images.get(hash);
+		if (image == null) {
+			image = new StoredImage(imageDir);
+			images.put(hash, image);
+		}
+
+		long oldSize = image.size;
+		image.size = getSize(imageDir);
+		image.lastUsed = now;
+		size += image.size - oldSize;
+
+		evict(now);
+
+		return file;
+
+	}
+
+	/**
+	 * Removes images which are older than the maximum age, and the least recently used
+	 * images while the store is larger than the maximum size.
+	 */
+	public synchronized void evict() {
+		load();
+		evict(System.currentTimeMillis());
+	}
+
+	private void evict(long now) {
+
+		List<StoredImage> used = new ArrayList<>();
+
+		// Iteration order is least recently used first
+		Iterator<StoredImage> iterator = images.values().iterator();
+		while (iterator.hasNext()) {
+
+			StoredImage image = iterator.next();
+
+			if (now - image.lastUsed < MIN_AGE) {
+				break;
+			} else if (size > maxSize || now - image.lastUsed > maxAge) {
+
+				iterator.remove();
+
+				// Another process may have used or written the image since it was indexed
+				long lastUsed = image.dir.exists() ? getLastUsed(image.dir) : 0;
+				if (lastUsed > image.lastUsed) {
+					long oldSize = image.size;
+					image.size = getSize(image.dir);
+					image.lastUsed = lastUsed;
+					size += image.size - oldSize;
+					used.add(image);
+				} else {
+					if (lastUsed > 0) {
+						delete(image.dir);
+					}
+					size -= image.size;
+				}
+
+			} else {
+				break;
+			}
+
+		}
+
+		// Added again as most recently used, they are checked by the next eviction
+		for (StoredImage image : used) {
+			images.put(image.dir.getName(), image);
+		}
+
+	}
+
+	private void load() {
+
+		if (loaded) {
+			return;
+		}
+		loaded = true;
+
+		File[] imageDirs = dir.listFiles();
+		if (imageDirs == null) {
+			return;
+		}
+
+		// Sorted by last use so the access order of the map matches
+		Arrays.sort(imageDirs, new Comparator<File>() {
+
+			@Override
+			public int compare(File file1, File file2) {
+				return Long.compare(getLastUsed(file1), getLastUsed(file2));
+			}
+		});
+
+		for (File imageDir : imageDirs) {
+
+			File[] files = imageDir.listFiles();
+			if (imageDir.isDirectory() && files != null) {
+
+				StoredImage image = new StoredImage(imageDir);
+				image.lastUsed = getLastUsed(imageDir);
+
+				// Left behind by a process which exited while writing, recent ones may still be written
+				for (File file : files) {
+					if (file.getName().endsWith(TEMP_EXTENSION) && System.currentTimeMillis() - file.lastModified() > MIN_AGE) {
+						file.delete();
+					}
+				}
+
+				image.size = getSize(imageDir);
+
+				images.put(imageDir.getName(), image);
+				size += image.size;
+
+			}
+
+		}
+
+		evict(System.currentTimeMillis());
+
+	}
+
+	private static long getSize(File imageDir) {
+
+		long size = 0;
+
+		File[] files = imageDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (!file.getName().endsWith(TEMP_EXTENSION)) {
+					size += file.length();
+				}
+			}
+		}
+
+		return size;
+
+	}
+
+	private static long getLastUsed(File imageDir) {
+
+		long lastUsed = imageDir.lastModified();
+
+		File[] files = imageDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				lastUsed = Math.max(lastUsed, file.lastModified());
+			}
+		}
+
+		return lastUsed;
+
+	}
+
+	private static void delete(File imageDir) {
+
+		File[] files = imageDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+
+		if (!imageDir.delete()) {
+			Communique.LOGGER.warn("Could not remove image from store: " + imageDir.getAbsolutePath()); //$NON-NLS-1$
+		}
+
+	}
+
+	public static String hash(byte[] bytes) {
+
+		try {
+
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(bytes); //$NON-NLS-1$
+
+			StringBuilder hash = new StringBuilder(2 * digest.length);
+			for (byte b : digest) {
+				hash.append(Character.forDigit((b >> 4) & 0xF, 16));
+				hash.append(Character.forDigit(b & 0xF, 16));
+			}
+
+			return hash.toString();
+
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+
+	}
+
+	private static class StoredImage {
+
+		private final File dir;
+		private long size = 0;
+		private long lastUsed = 0;
+
+		private StoredImage(File dir) {
+			this.dir = dir;
+		}
+
+	}
+
+}
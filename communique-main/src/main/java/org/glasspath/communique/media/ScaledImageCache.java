@@ -0,0 +1,333 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.media;
+
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.SwingUtilities;
+
+import org.glasspath.communique.Communique;
+
+/**
+ * Caches scaled down, display compatible variants of images per target size so painting an
+ * image becomes a plain copy instead of a rescale. Variants are built on a background thread,
+ * until a variant is ready the caller paints the original. The cache is kept below a memory
+ * budget by evicting the least recently used variants, variants don't keep their source image
+ * from being garbage collected. Variants which could not be built are not requested again.
+ */
+public class ScaledImageCache {
+
+	public static final long DEFAULT_MAX_SIZE = 128L * 1024L * 1024L;
+
+	private static ScaledImageCache instance = null;
+
+	private final Map<Key, BufferedImage> variants = new LinkedHashMap<>(16, 0.75F, true);
+	private final Map<Key, List<Runnable>> pending = new HashMap<>();
+	private final Set<Key> failed = new HashSet<>();
+	private final ExecutorService executor;
+	private long maxSize = DEFAULT_MAX_SIZE;
+	private long size = 0;
+	private int generation = 0;
+
+	public ScaledImageCache() {
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "scaled-image-cache"); //$NON-NLS-1$
+				thread.setDaemon(true);
+				thread.setPriority(Thread.MIN_PRIORITY);
+				return thread;
+			}
+		});
+
+	}
+
+	public static synchronized ScaledImageCache getInstance() {
+		if (instance == null) {
+			instance = new ScaledImageCache();
+		}
+		return instance;
+	}
+
+	public synchronized long getMaxSize() {
+		return maxSize;
+	}
+
+	public synchronized void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+		evict();
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Returns the variant of the image with the given size, or null if it is not available yet.
+	 * In that case the variant is built in the background and the callback (if not null) is
+	 * invoked on the EDT when it is ready. Images which are not scaled down don't get a variant,
+	 * for those null is returned as well and nothing is built.
+	 */
+	public BufferedImage getScaledImage(BufferedImage image, int width, int height, GraphicsConfiguration graphicsConfiguration, Runnable callback) {
+
+		if (image == null || width <= 0 || height <= 0 || (width >= image.getWidth() && height >= image.getHeight())) {
+			return null;
+		}
+
+		Key key = new Key(image, width, height);
+		BufferedImage source;
+		int buildGeneration;
+
+		synchronized (this) {
+
+			BufferedImage variant = variants.get(key);
+			if (variant != null) {
+				return variant;
+			} else if (failed.contains(key)) {
+				return null;
+			}
+
+			// The image may be painted at several places while the variant is being built
+			List<Runnable> callbacks = pending.get(key);
+			if (callbacks != null) {
+				if (callback != null) {
+					callbacks.add(callback);
+				}
+				return null;
+			}
+
+			callbacks = new ArrayList<>();
+			if (callback != null) {
+				callbacks.add(callback);
+			}
+			pending.put(key, callbacks);
+
+			source = findSource(image, width, height);
+			buildGeneration = generation;
+
+		}
+
+		executor.execute(new Runnable() {
+
+			@Override
+			public void run() {
+
+				BufferedImage variant = null;
+				try {
+					variant = scale(source, width, height, graphicsConfiguration);
+				} catch (Throwable t) {
+					Communique.LOGGER.error("Exception while scaling image", t); //$NON-NLS-1$
+				}
+
+				List<Runnable> readyCallbacks;
+
+				synchronized (ScaledImageCache.this) {
+
+					// Cleared while building, the pending callbacks were dropped as well
+					if (buildGeneration != generation) {
+						return;
+					}
+
+					readyCallbacks = pending.remove(key);
+
+					if (variant == null) {
+						failed.add(key);
+					} else if (key.isValid()) {
+						variants.put(key, variant);
+						size += getSize(variant);
+					}
+
+					evict();
+
+				}
+
+				if (variant != null && readyCallbacks != null) {
+					for (Runnable readyCallback : readyCallbacks) {
+						SwingUtilities.invokeLater(readyCallback);
+					}
+				}
+
+			}
+		});
+
+		return null;
+
+	}
+
+	public synchronized void clear() {
+		variants.clear();
+		pending.clear();
+		failed.clear();
+		size = 0;
+		generation++;
+	}
+
+	/**
+	 * Returns the smallest variant of the image which is at least as large as the requested size,
+	 * scaling from there is much cheaper than scaling from the original.
+	 */
+	private BufferedImage findSource(BufferedImage image, int width, int height) {
+
+		BufferedImage source = image;
+
+		for (Entry<Key, BufferedImage> entry : variants.entrySet()) {
+
+			BufferedImage variant = entry.getValue();
+
+			if (entry.getKey().image.get() == image && variant.getWidth() >= width && variant.getHeight() >= height && variant.getWidth() < source.getWidth()) {
+				source = variant;
+			}
+
+		}
+
+		return source;
+
+	}
+
+	private void evict() {
+
+		Iterator<Entry<Key, BufferedImage>> iterator = variants.entrySet().iterator();
+		while (iterator.hasNext()) {
+
+			Entry<Key, BufferedImage> entry = iterator.next();
+
+			// Variants of images which have been garbage collected can never be requested again
+			if (size > maxSize || !entry.getKey().isValid()) {
+				size -= getSize(entry.getValue());
+				iterator.remove();
+			}
+
+		}
+
+		Iterator<Key> failedIterator = failed.iterator();
+		while (failedIterator.hasNext()) {
+			if (!failedIterator.next().isValid()) {
+				failedIterator.remove();
+			}
+		}
+
+	}
+
+	private static long getSize(BufferedImage image) {
+		return 4L * image.getWidth() * image.getHeight();
+	}
+
+	/**
+	 * Scales down in steps of at most 50% (like mipmap levels), the last step draws into an image
+	 * compatible with the display.
+	 */
+	private static BufferedImage scale(BufferedImage image, int targetWidth, int targetHeight, GraphicsConfiguration graphicsConfiguration) {
+
+		int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+
+		BufferedImage scaled = image;
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		do {
+
+			width = Math.max(targetWidth, width / 2);
+			height = Math.max(targetHeight, height / 2);
+
+			BufferedImage step;
+			if (width == targetWidth && height == targetHeight && graphicsConfiguration != null) {
+				step = graphicsConfiguration.createCompatibleImage(width, height, image.getColorModel().hasAlpha() ? Transparency.TRANSLUCENT : Transparency.OPAQUE);
+			} else {
+				step = new BufferedImage(width, height, type);
+			}
+
+			Graphics2D g2d = step.createGraphics();
+			g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			g2d.drawImage(scaled, 0, 0, width, height, null);
+			g2d.dispose();
+
+			scaled = step;
+
+		} while (width != targetWidth || height != targetHeight);
+
+		return scaled;
+
+	}
+
+	private static class Key {
+
+		private final WeakReference<BufferedImage> image;
+		private final int width;
+		private final int height;
+		private final int hashCode;
+
+		private Key(BufferedImage image, int width, int height) {
+			this.image = new WeakReference<>(image);
+			this.width = width;
+			this.height = height;
+			this.hashCode = 31 * (31 * System.identityHashCode(image) + width) + height;
+		}
+
+		private boolean isValid() {
+			return image.get() != null;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+
+			if (this == obj) {
+				return true;
+			} else if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key) obj;
+			BufferedImage otherImage = other.image.get();
+
+			return otherImage != null && otherImage == image.get() && width == other.width && height == other.height;
+
+		}
+
+	}
+
+}
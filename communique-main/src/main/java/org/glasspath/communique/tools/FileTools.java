@@ -25,15 +25,26 @@ package org.glasspath.communique.tools;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
-import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
 
 import javax.swing.JButton;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.KeyStroke;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
+import javax.swing.Timer;
 
 import org.glasspath.aerialist.AerialistUtils;
 import org.glasspath.aerialist.Content;
@@ -43,7 +54,6 @@ import org.glasspath.aerialist.IFieldContext;
 import org.glasspath.aerialist.XDoc;
 import org.glasspath.aerialist.icons.Icons;
 import org.glasspath.aerialist.layout.ILayoutContext.ExportPhase;
-import org.glasspath.aerialist.media.BufferedImageMediaCache;
 import org.glasspath.aerialist.reader.XDocReader;
 import org.glasspath.aerialist.template.TemplateParser;
 import org.glasspath.aerialist.writer.XDocWriter;
@@ -54,15 +64,19 @@ import org.glasspath.common.swing.file.chooser.FileChooser;
 import org.glasspath.common.swing.tools.AbstractTools;
 import org.glasspath.communique.Communique;
 import org.glasspath.communique.CommuniqueUtils;
+import org.glasspath.communique.HtmlWriter;
+import org.glasspath.communique.editor.EditorMediaCache;
 import org.glasspath.communique.editor.EmailEditorPanel;
 
-import com.lowagie.text.DocumentException;
-
 public class FileTools extends AbstractTools<Communique> {
 
 	public static boolean TODO_ADD_EXPORT_HTML_MENU_ITEM = false;
 	public static boolean TODO_ADD_PRINT_MENU_ITEM = false;
 
+	public static final String HTML_EXTENSION = "html"; //$NON-NLS-1$
+	public static final int EXPORT_PROGRESS = 50;
+	public static final int WRITE_SLICE = 1024 * 1024;
+
 	private final JMenuItem exportEmlMenuItem;
 	private final JMenuItem exportHtmlMenuItem;
 
@@ -290,7 +304,7 @@ public class FileTools extends AbstractTools<Communique> {
 		editor.getSelection().clear();
 
 		Email email = null;
-		BufferedImageMediaCache mediaCache = new BufferedImageMediaCache();
+		EditorMediaCache mediaCache = new EditorMediaCache();
 
 		if (emailPath != null && new File(emailPath).exists()) {
 
@@ -337,6 +351,8 @@ public class FileTools extends AbstractTools<Communique> {
 		editor.setMediaCache(mediaCache);
 		editor.getEmailContainer().init(email);
 
+		context.getPreRenderer().invalidate();
+
 	}
 
 	private boolean saveCurrentEmail(String path) {
@@ -422,24 +438,146 @@ public class FileTools extends AbstractTools<Communique> {
 
 	public void exportToHtml() {
 
+		String suggestedName = null;
+		if (context.getEditorContext() != null && context.getEditorContext().getSuggestedFileName() != null) {
+			suggestedName = context.getEditorContext().getSuggestedFileName() + "." + HTML_EXTENSION; //$NON-NLS-1$
+		}
+
+		// TODO: Icon
+		String path = FileChooser.browseForFile(HTML_EXTENSION, Icons.image, true, context.getFrame(), context.getPreferences(), "lastExportPath", suggestedName); //$NON-NLS-1$
+		if (path != null) {
+			exportToHtml(path);
+		}
+
+	}
+
+	/**
+	 * Exports the email to the given path on a worker thread, the export can be cancelled from the
+	 * progress dialog. The file is written to a temporary file first and then moved into place.
+	 */
+	public void exportToHtml(String path) {
+
 		EmailEditorPanel emailEditor = context.getMainPanel().getEmailEditor();
 		Email email = emailEditor.getEmailContainer().toEmail();
 
-		String html = new HtmlExporter().toHtml(email); // $NON-NLS-1$
+		Path target = Paths.get(path).toAbsolutePath();
 
-		try {
+		ProgressMonitor progressMonitor = new ProgressMonitor(context.getFrame(), "Exporting to HTML", target.getFileName().toString(), 0, 100);
+		progressMonitor.setMillisToDecideToPopup(250);
+		progressMonitor.setMillisToPopup(500);
 
-			Files.write(Paths.get("export.html"), html.getBytes());
+		SwingWorker<Path, Void> worker = new SwingWorker<Path, Void>() {
 
-			emailEditor.getEmailContainer().setExportPhase(ExportPhase.IDLE);
+			@Override
+			protected Path doInBackground() throws Exception {
 
-			DesktopUtils.open("export.html", context.getFrame());
+				String html = new HtmlExporter().toHtml(email);
+				if (isCancelled()) {
+					return null;
+				}
 
-		} catch (DocumentException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+				setProgress(EXPORT_PROGRESS);
+
+				Path tempFile = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp"); //$NON-NLS-1$
+				boolean moved = false;
+
+				try {
+
+					// Encoded in chunks, html.getBytes() would create a second copy of the complete document
+					try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+						int start = 0;
+						while (start < html.length()) {
+
+							if (isCancelled()) {
+								return null;
+							}
+
+							int end = Math.min(html.length(), start + WRITE_SLICE);
+							if (end < html.length() && Character.isHighSurrogate(html.charAt(end - 1))) {
+								end--;
+							}
+
+							HtmlWriter.write(CharBuffer.wrap(html, start, end), channel);
+							start = end;
+
+							setProgress(EXPORT_PROGRESS + (int) ((100L - EXPORT_PROGRESS) * start / html.length()));
+
+						}
+
+					}
+
+					try {
+						Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					} catch (AtomicMoveNotSupportedException e) {
+						Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+					}
+					moved = true;
+
+				} finally {
+					if (!moved) {
+						Files.deleteIfExists(tempFile);
+					}
+				}
+
+				return target;
+
+			}
+
+			@Override
+			protected void done() {
+
+				progressMonitor.close();
+
+				if (isCancelled()) {
+					return;
+				}
+
+				try {
+
+					Path exported = get();
+					if (exported != null) {
+						emailEditor.getEmailContainer().setExportPhase(ExportPhase.IDLE);
+						DesktopUtils.open(exported.toString(), context.getFrame());
+					}
+
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					Communique.LOGGER.error("Exception while exporting to html", e.getCause()); //$NON-NLS-1$
+					DialogUtils.showWarningMessage(context.getFrame(), "Export failed", "The email could not be exported.", e);
+				} catch (Exception e) {
+					Communique.LOGGER.error("Exception while opening exported html", e); //$NON-NLS-1$
+				}
+
+			}
+		};
+
+		worker.addPropertyChangeListener(new PropertyChangeListener() {
+
+			@Override
+			public void propertyChange(PropertyChangeEvent event) {
+				if ("progress".equals(event.getPropertyName())) { //$NON-NLS-1$
+					progressMonitor.setProgress((Integer) event.getNewValue());
+				}
+			}
+		});
+
+		// The progress monitor doesn't notify when it's cancelled so it's polled until the worker is done
+		Timer cancelTimer = new Timer(200, new ActionListener() {
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				if (worker.isDone()) {
+					((Timer) e.getSource()).stop();
+				} else if (progressMonitor.isCanceled()) {
+					worker.cancel(false);
+				}
+			}
+		});
+		cancelTimer.start();
+
+		worker.execute();
 
 	}
 
@@ -0,0 +1,174 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class HtmlWriterTest {
+
+	@Test
+	public void testWriter() throws IOException {
+
+		String html = createHtml(3 * HtmlWriter.CHUNK_SIZE + 10);
+
+		final StringWriter stringWriter = new StringWriter();
+		final List<Integer> appends = new ArrayList<>();
+
+		Writer writer = new Writer() {
+
+			@Override
+			public Writer append(CharSequence csq, int start, int end) {
+				appends.add(end - start);
+				stringWriter.append(csq, start, end);
+				return this;
+			}
+
+			@Override
+			public void write(char[] cbuf, int off, int len) {
+				stringWriter.write(cbuf, off, len);
+			}
+
+			@Override
+			public void flush() {
+
+			}
+
+			@Override
+			public void close() {
+
+			}
+		};
+
+		HtmlWriter.write(html, writer);
+
+		assertEquals(html, stringWriter.toString());
+		assertEquals(4, appends.size());
+		for (int length : appends) {
+			assertTrue(length <= HtmlWriter.CHUNK_SIZE);
+		}
+
+	}
+
+	@Test
+	public void testChannel() throws IOException {
+
+		// Multi byte characters and surrogate pairs end up on chunk boundaries
+		String html = createHtml(5 * HtmlWriter.CHUNK_SIZE + 3);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HtmlWriter.write(html, Channels.newChannel(out));
+
+		assertArrayEquals(html.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+
+	}
+
+	@Test
+	public void testPartialWrites() throws IOException {
+
+		String html = createHtml(2 * HtmlWriter.CHUNK_SIZE);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		// Accepts at most 1000 bytes per call, like a non blocking socket
+		WritableByteChannel channel = new WritableByteChannel() {
+
+			@Override
+			public int write(ByteBuffer src) {
+				int length = Math.min(1000, src.remaining());
+				for (int i = 0; i < length; i++) {
+					out.write(src.get());
+				}
+				return length;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+
+			}
+		};
+
+		HtmlWriter.write(html, channel);
+
+		assertArrayEquals(html.getBytes(StandardCharsets.UTF_8), out.toByteArray());
+
+	}
+
+	@Test
+	public void testUnmappableCharacters() throws IOException {
+
+		String html = "<p>Zo\u00EB \u20AC</p>"; //$NON-NLS-1$
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HtmlWriter.write(html, Channels.newChannel(out), StandardCharsets.ISO_8859_1);
+
+		assertEquals("<p>Zo\u00EB ?</p>", new String(out.toByteArray(), StandardCharsets.ISO_8859_1)); //$NON-NLS-1$
+
+	}
+
+	@Test
+	public void testEmpty() throws IOException {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		HtmlWriter.write("", Channels.newChannel(out)); //$NON-NLS-1$
+		assertEquals(0, out.size());
+
+		StringWriter writer = new StringWriter();
+		HtmlWriter.write("", writer); //$NON-NLS-1$
+		assertEquals("", writer.toString()); //$NON-NLS-1$
+
+	}
+
+	private static String createHtml(int length) {
+
+		String[] parts = new String[] { "<p>", "text", "\u00EB", "\u20AC", "\uD83D\uDE00", "</p>\n" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$ //$NON-NLS-6$
+
+		StringBuilder builder = new StringBuilder(length + 8);
+		for (int i = 0; builder.length() < length; i++) {
+			builder.append(parts[i % parts.length]);
+		}
+
+		return builder.toString();
+
+	}
+
+}
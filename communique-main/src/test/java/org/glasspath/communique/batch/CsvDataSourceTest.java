@@ -0,0 +1,96 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class CsvDataSourceTest {
+
+	@Test
+	public void testHeaderAndRows() throws IOException {
+
+		try (CsvDataSource dataSource = new CsvDataSource(new StringReader("\uFEFFname , email\nAlice,alice@example.com\r\nBob,bob@example.com\rCarol,carol@example.com\n"), ',')) { //$NON-NLS-1$
+
+			assertEquals(Arrays.asList("name", "email"), dataSource.getColumns()); //$NON-NLS-1$ //$NON-NLS-2$
+
+			assertRow(dataSource.next(), "Alice", "alice@example.com"); //$NON-NLS-1$ //$NON-NLS-2$
+			assertRow(dataSource.next(), "Bob", "bob@example.com"); //$NON-NLS-1$ //$NON-NLS-2$
+			assertRow(dataSource.next(), "Carol", "carol@example.com"); //$NON-NLS-1$ //$NON-NLS-2$
+			assertNull(dataSource.next());
+			assertNull(dataSource.next());
+
+		}
+
+	}
+
+	@Test
+	public void testQuotedValues() throws IOException {
+
+		try (CsvDataSource dataSource = new CsvDataSource(new StringReader("name,email\n\"Smith, \"\"J\"\"\",\"line 1\nline 2\"\n\"\",x"), ',')) { //$NON-NLS-1$
+
+			assertRow(dataSource.next(), "Smith, \"J\"", "line 1\nline 2"); //$NON-NLS-1$ //$NON-NLS-2$
+			assertRow(dataSource.next(), "", "x"); //$NON-NLS-1$ //$NON-NLS-2$
+			assertNull(dataSource.next());
+
+		}
+
+	}
+
+	@Test
+	public void testEmptyLinesAndMissingValues() throws IOException {
+
+		try (CsvDataSource dataSource = new CsvDataSource(new StringReader("name;email\n\nAlice\n\nBob;bob@example.com;extra\n\n"), ';')) { //$NON-NLS-1$
+
+			assertRow(dataSource.next(), "Alice", ""); //$NON-NLS-1$ //$NON-NLS-2$
+			assertRow(dataSource.next(), "Bob", "bob@example.com"); //$NON-NLS-1$ //$NON-NLS-2$
+			assertNull(dataSource.next());
+
+		}
+
+	}
+
+	@Test
+	public void testEmptyFile() throws IOException {
+
+		try (CsvDataSource dataSource = new CsvDataSource(new StringReader(""), ',')) { //$NON-NLS-1$
+			assertEquals(0, dataSource.getColumns().size());
+			assertNull(dataSource.next());
+		}
+
+	}
+
+	private static void assertRow(Map<String, String> row, String name, String email) {
+		assertEquals(2, row.size());
+		assertEquals(name, row.get("name")); //$NON-NLS-1$
+		assertEquals(email, row.get("email")); //$NON-NLS-1$
+	}
+
+}
@@ -0,0 +1,94 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class JsonLinesDataSourceTest {
+
+	@Test
+	public void testRows() throws IOException {
+
+		try (JsonLinesDataSource dataSource = new JsonLinesDataSource(new StringReader("{\"name\":\"Alice\",\"age\":30}\n\n  \n{\"name\":\"Bob\",\"email\":null,\"vip\":true}\n"))) { //$NON-NLS-1$
+
+			Map<String, String> row = dataSource.next();
+			assertEquals("Alice", row.get("name")); //$NON-NLS-1$ //$NON-NLS-2$
+			assertEquals("30", row.get("age")); //$NON-NLS-1$ //$NON-NLS-2$
+			assertEquals(Arrays.asList("name", "age"), dataSource.getColumns()); //$NON-NLS-1$ //$NON-NLS-2$
+
+			row = dataSource.next();
+			assertEquals("Bob", row.get("name")); //$NON-NLS-1$ //$NON-NLS-2$
+			assertEquals("", row.get("email")); //$NON-NLS-1$ //$NON-NLS-2$
+			assertEquals("true", row.get("vip")); //$NON-NLS-1$ //$NON-NLS-2$
+			assertEquals(Arrays.asList("name", "age", "email", "vip"), dataSource.getColumns()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+			assertNull(dataSource.next());
+
+		}
+
+	}
+
+	@Test
+	public void testNestedValues() throws IOException {
+
+		try (JsonLinesDataSource dataSource = new JsonLinesDataSource(new StringReader("{\"tags\":[\"a\",\"b\"],\"address\":{\"city\":\"Delft\"},\"note\":\"x\\ny\"}"))) { //$NON-NLS-1$
+
+			Map<String, String> row = dataSource.next();
+			assertEquals("[\"a\",\"b\"]", row.get("tags")); //$NON-NLS-1$ //$NON-NLS-2$
+			assertEquals("{\"city\":\"Delft\"}", row.get("address")); //$NON-NLS-1$ //$NON-NLS-2$
+			assertEquals("x\ny", row.get("note")); //$NON-NLS-1$ //$NON-NLS-2$
+
+			assertNull(dataSource.next());
+
+		}
+
+	}
+
+	@Test
+	public void testNotAnObject() throws IOException {
+
+		try (JsonLinesDataSource dataSource = new JsonLinesDataSource(new StringReader("{\"name\":\"Alice\"}\n[1, 2]\n"))) { //$NON-NLS-1$
+
+			dataSource.next();
+
+			try {
+				dataSource.next();
+				fail();
+			} catch (IOException e) {
+				assertEquals("Line 2 does not contain a JSON object", e.getMessage()); //$NON-NLS-1$
+			}
+
+		}
+
+	}
+
+}
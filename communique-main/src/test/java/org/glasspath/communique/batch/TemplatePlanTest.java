@@ -0,0 +1,145 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.batch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.glasspath.common.share.mail.Mailable;
+import org.junit.Test;
+
+public class TemplatePlanTest {
+
+	@Test
+	public void testFragments() {
+
+		String s = "Dear " + TemplatePlan.marker(0) + ", your order " + TemplatePlan.marker(1) + " for " + TemplatePlan.marker(0) + "."; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+
+		TemplatePlan.Fragments fragments = TemplatePlan.Fragments.split(s, 2);
+		assertEquals("Dear Zo\u00EB, your order 42 for Zo\u00EB.", fragments.render(new String[] { "Zo\u00EB", "42" }, null)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		String[] escaped = new String[2];
+		assertEquals("Dear a &amp; b, your order &lt;1&gt; for a &amp; b.", fragments.render(new String[] { "a & b", "<1>" }, escaped)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assertEquals("a &amp; b", escaped[0]); //$NON-NLS-1$
+
+	}
+
+	@Test
+	public void testFragmentsWithoutFields() {
+
+		TemplatePlan.Fragments fragments = TemplatePlan.Fragments.split("Static", 1); //$NON-NLS-1$
+		assertEquals("Static", fragments.render(new String[] { "x" }, null)); //$NON-NLS-1$ //$NON-NLS-2$
+
+		assertEquals("", TemplatePlan.Fragments.split(null, 1).render(new String[] { "x" }, null)); //$NON-NLS-1$ //$NON-NLS-2$
+
+		assertEquals("x", TemplatePlan.Fragments.split(TemplatePlan.marker(0), 1).render(new String[] { "x" }, null)); //$NON-NLS-1$ //$NON-NLS-2$
+
+	}
+
+	@Test
+	public void testDamagedMarkers() {
+
+		String marker = TemplatePlan.marker(0);
+
+		// Unterminated, without start, not a number and out of range
+		assertNull(TemplatePlan.Fragments.split("a " + marker.substring(0, marker.length() - 1), 1)); //$NON-NLS-1$
+		assertNull(TemplatePlan.Fragments.split("a " + marker.substring(1), 1)); //$NON-NLS-1$
+		assertNull(TemplatePlan.Fragments.split("a " + marker.charAt(0) + "x" + marker.charAt(marker.length() - 1), 1)); //$NON-NLS-1$ //$NON-NLS-2$
+		assertNull(TemplatePlan.Fragments.split(TemplatePlan.marker(1), 1));
+
+	}
+
+	@Test
+	public void testEscapeHtml() {
+
+		String value = "plain text"; //$NON-NLS-1$
+		assertSame(value, TemplatePlan.escapeHtml(value));
+
+		assertEquals("&lt;b&gt;&quot;x&quot; &amp; y&lt;/b&gt;", TemplatePlan.escapeHtml("<b>\"x\" & y</b>")); //$NON-NLS-1$ //$NON-NLS-2$
+
+	}
+
+	@Test
+	public void testProbes() {
+
+		for (TemplatePlan.Probe probe : TemplatePlan.Probe.values()) {
+			assertTrue(probe.name(), probe.matches(probe.getValue()));
+		}
+
+		assertFalse(TemplatePlan.Probe.EMPTY.matches("x")); //$NON-NLS-1$
+		assertFalse(TemplatePlan.Probe.WHITESPACE.matches("x y")); //$NON-NLS-1$
+		assertFalse(TemplatePlan.Probe.AMPERSAND.matches("x and y")); //$NON-NLS-1$
+		assertFalse(TemplatePlan.Probe.NON_ASCII.matches("Zoe")); //$NON-NLS-1$
+
+	}
+
+	@Test
+	public void testExcludedValues() {
+
+		List<String> fields = Arrays.asList("name", "email"); //$NON-NLS-1$ //$NON-NLS-2$
+		TemplatePlan.Fragments html = TemplatePlan.Fragments.split("<p>" + TemplatePlan.marker(0) + "</p>", 2); //$NON-NLS-1$ //$NON-NLS-2$
+		TemplatePlan.Fragments text = TemplatePlan.Fragments.split(TemplatePlan.marker(0), 2);
+		TemplatePlan.Fragments subject = TemplatePlan.Fragments.split("Hi " + TemplatePlan.marker(0), 2); //$NON-NLS-1$
+		TemplatePlan.Fragments to = TemplatePlan.Fragments.split(TemplatePlan.marker(1), 2);
+		TemplatePlan.Fragments empty = TemplatePlan.Fragments.split("", 2); //$NON-NLS-1$
+
+		TemplatePlan plan = new TemplatePlan(fields, html, text, subject, to, empty, empty);
+
+		Map<String, String> values = new HashMap<>();
+		values.put("name", "O'Brien & Co"); //$NON-NLS-1$ //$NON-NLS-2$
+		values.put("email", "info@example.com"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue(plan.accepts(values));
+
+		Mailable mailable = plan.createMailable(values);
+		assertEquals("<p>O'Brien &amp; Co</p>", mailable.getHtml()); //$NON-NLS-1$
+		assertEquals("O'Brien & Co", mailable.getText()); //$NON-NLS-1$
+		assertEquals("Hi O'Brien & Co", mailable.getSubject()); //$NON-NLS-1$
+		assertEquals(Arrays.asList("info@example.com"), mailable.getTo()); //$NON-NLS-1$
+
+		plan.exclude("name", TemplatePlan.Probe.APOSTROPHE); //$NON-NLS-1$
+		plan.exclude("unknown", TemplatePlan.Probe.EMPTY); //$NON-NLS-1$
+		assertEquals(1, plan.getExcluded("name").size()); //$NON-NLS-1$
+		assertEquals(0, plan.getExcluded("email").size()); //$NON-NLS-1$
+		assertEquals(0, plan.getExcluded("unknown").size()); //$NON-NLS-1$
+
+		assertFalse(plan.accepts(values));
+
+		values.put("name", "Obrien"); //$NON-NLS-1$ //$NON-NLS-2$
+		assertTrue(plan.accepts(values));
+
+		// Missing values are rendered as empty strings
+		plan.exclude("email", TemplatePlan.Probe.EMPTY); //$NON-NLS-1$
+		values.remove("email"); //$NON-NLS-1$
+		assertFalse(plan.accepts(values));
+
+	}
+
+}
@@ -0,0 +1,68 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.editor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Font;
+
+import org.glasspath.aerialist.text.font.FontWeight;
+import org.junit.Test;
+
+public class EditorFontCacheAdapterTest {
+
+	@Test
+	public void testCached() {
+
+		EditorFontCache editorFontCache = new EditorFontCache();
+		EditorFontCacheAdapter fontCache = new EditorFontCacheAdapter(editorFontCache);
+
+		Font font = fontCache.getFont("Dialog", FontWeight.REGULAR, 14.0F, false, false); //$NON-NLS-1$
+		assertSame(font, fontCache.getFont("Dialog", FontWeight.REGULAR, 14.0F, false, false)); //$NON-NLS-1$
+		assertSame(font, fontCache.getFont("Dialog", Font.PLAIN, 14.0F)); //$NON-NLS-1$
+		assertEquals(14.0F, font.getSize2D(), 0.0F);
+
+		assertNotSame(font, fontCache.getFont("Dialog", FontWeight.REGULAR, 16.0F, false, false)); //$NON-NLS-1$
+
+		editorFontCache.clear();
+		assertNotSame(font, fontCache.getFont("Dialog", Font.PLAIN, 14.0F)); //$NON-NLS-1$
+
+	}
+
+	@Test
+	public void testStyle() {
+
+		EditorFontCacheAdapter fontCache = new EditorFontCacheAdapter(new EditorFontCache());
+
+		assertTrue(fontCache.getFont("Dialog", FontWeight.REGULAR, 12.0F, true, false).isBold()); //$NON-NLS-1$
+		assertTrue(fontCache.getFont("Dialog", FontWeight.BOLD, 12.0F, false, false).isBold()); //$NON-NLS-1$
+		assertTrue(fontCache.getFont("Dialog", FontWeight.REGULAR, 12.0F, false, true).isItalic()); //$NON-NLS-1$
+		assertTrue(fontCache.getFont("Dialog", Font.BOLD | Font.ITALIC, 12.0F).isBold()); //$NON-NLS-1$
+		assertTrue(fontCache.getFont(null, Font.ITALIC, 12.0F).isItalic());
+
+	}
+
+}
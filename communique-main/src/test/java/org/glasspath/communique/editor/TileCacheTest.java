@@ -0,0 +1,203 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.editor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+
+import javax.swing.JPanel;
+import javax.swing.JViewport;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TileCacheTest {
+
+	private static final long TILE_BYTES = 4L * TileCache.TILE_SIZE * TileCache.TILE_SIZE;
+
+	private JPanel container;
+	private JViewport viewport;
+	private TileCache tileCache;
+	private int paintCount;
+
+	@Before
+	public void setUp() {
+
+		container = new JPanel();
+		container.setSize(new Dimension(20 * TileCache.TILE_SIZE, 20 * TileCache.TILE_SIZE));
+
+		viewport = new JViewport();
+		viewport.setView(container);
+		viewport.setSize(400, 400);
+
+		paintCount = 0;
+		tileCache = new TileCache(container, new TileCache.ContentPainter() {
+
+			@Override
+			public void paintContent(Graphics2D g2d) {
+				paintCount++;
+			}
+		});
+		tileCache.setEnabled(true);
+
+	}
+
+	@Test
+	public void testTilesAreReused() {
+
+		scroll();
+		paint(new Rectangle(0, 0, 600, 300), 1.0);
+
+		assertEquals(6, tileCache.getTileCount());
+		assertEquals(6, paintCount);
+		assertEquals(6 * TILE_BYTES, tileCache.getBytes());
+
+		scroll();
+		paint(new Rectangle(10, 10, 500, 200), 1.0);
+
+		assertEquals(6, tileCache.getTileCount());
+		assertEquals(6, paintCount);
+
+	}
+
+	@Test
+	public void testInvalidate() {
+
+		scroll();
+		paint(new Rectangle(0, 0, 3 * TileCache.TILE_SIZE, 2 * TileCache.TILE_SIZE), 1.0);
+		assertEquals(6, tileCache.getTileCount());
+
+		// Only the tile at column 1, row 0
+		tileCache.invalidate(new Rectangle(TileCache.TILE_SIZE + 10, 10, 10, 10));
+		assertEquals(5, tileCache.getTileCount());
+		assertEquals(5 * TILE_BYTES, tileCache.getBytes());
+
+		// Regions outside the container don't drop anything
+		tileCache.invalidate(new Rectangle(-300, -300, 100, 100));
+		tileCache.invalidate(new Rectangle(0, 0, 0, 0));
+		tileCache.invalidate(null);
+		assertEquals(5, tileCache.getTileCount());
+
+		// From row 1 down
+		tileCache.invalidate(new Rectangle(0, TileCache.TILE_SIZE, Integer.MAX_VALUE, Integer.MAX_VALUE - TileCache.TILE_SIZE));
+		assertEquals(2, tileCache.getTileCount());
+
+		scroll();
+		paint(new Rectangle(0, 0, 3 * TileCache.TILE_SIZE, 2 * TileCache.TILE_SIZE), 1.0);
+		assertEquals(6, tileCache.getTileCount());
+		assertEquals(10, paintCount);
+
+	}
+
+	@Test
+	public void testPaintOutsideBurst() throws InterruptedException {
+
+		scroll();
+		paint(new Rectangle(0, 0, 3 * TileCache.TILE_SIZE, 2 * TileCache.TILE_SIZE), 1.0);
+		assertEquals(6, tileCache.getTileCount());
+
+		Thread.sleep(3 * TileCache.SCROLL_BURST_DELAY);
+
+		// Painted directly, the tiles under the clip are dropped and the others are kept
+		paint(new Rectangle(0, 0, 10, 10), 1.0);
+		assertEquals(7, paintCount);
+		assertEquals(5, tileCache.getTileCount());
+
+	}
+
+	@Test
+	public void testMaxBytes() {
+
+		scroll();
+		paint(new Rectangle(0, 0, container.getWidth(), container.getHeight()), 1.0);
+
+		assertEquals(TileCache.MAX_BYTES / TILE_BYTES, tileCache.getTileCount());
+		assertEquals(TileCache.MAX_BYTES, tileCache.getBytes());
+
+	}
+
+	@Test
+	public void testScale() {
+
+		scroll();
+		paint(new Rectangle(0, 0, 10, 10), 1.0);
+		assertEquals(TILE_BYTES, tileCache.getBytes());
+
+		// Tiles are rendered again at device resolution
+		scroll();
+		paint(new Rectangle(0, 0, 10, 10), 2.0);
+		assertEquals(1, tileCache.getTileCount());
+		assertEquals(4 * TILE_BYTES, tileCache.getBytes());
+		assertEquals(2, paintCount);
+
+	}
+
+	@Test
+	public void testDisable() {
+
+		scroll();
+		paint(new Rectangle(0, 0, 10, 10), 1.0);
+		assertEquals(1, tileCache.getTileCount());
+
+		tileCache.setEnabled(false);
+		assertFalse(tileCache.isEnabled());
+		assertEquals(0, tileCache.getTileCount());
+		assertEquals(0, tileCache.getBytes());
+
+		// Painted directly while disabled
+		scroll();
+		paint(new Rectangle(0, 0, 10, 10), 1.0);
+		assertEquals(0, tileCache.getTileCount());
+		assertEquals(2, paintCount);
+
+		tileCache.setEnabled(true);
+		assertTrue(tileCache.isEnabled());
+
+	}
+
+	private void scroll() {
+		Point position = viewport.getViewPosition();
+		viewport.setViewPosition(new Point(position.x, position.y == 0 ? 1 : 0));
+	}
+
+	private void paint(Rectangle clip, double scale) {
+
+		BufferedImage image = new BufferedImage(10, 10, BufferedImage.TYPE_INT_RGB);
+		Graphics2D g2d = image.createGraphics();
+		g2d.scale(scale, scale);
+		g2d.setClip(clip);
+
+		tileCache.paint(g2d);
+
+		g2d.dispose();
+
+	}
+
+}
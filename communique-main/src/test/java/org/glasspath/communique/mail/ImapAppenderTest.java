@@ -0,0 +1,85 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Properties;
+
+import org.glasspath.common.share.mail.Imap;
+import org.glasspath.common.share.mail.account.ImapConfiguration;
+import org.junit.Test;
+
+public class ImapAppenderTest {
+
+	@Test
+	public void testImapProperties() {
+
+		Properties properties = ImapAppender.createProperties(createConfiguration(Imap.Protocol.IMAP), 5000);
+
+		assertEquals("imap", properties.getProperty("mail.store.protocol")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals("imap.example.com", properties.getProperty("mail.imap.host")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals("143", properties.getProperty("mail.imap.port")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals("5000", properties.getProperty("mail.imap.timeout")); //$NON-NLS-1$ //$NON-NLS-2$
+
+		// Opportunistic STARTTLS
+		assertEquals("true", properties.getProperty("mail.imap.starttls.enable")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertNull(properties.getProperty("mail.imap.starttls.required")); //$NON-NLS-1$
+
+	}
+
+	@Test
+	public void testImapsProperties() {
+
+		Properties properties = ImapAppender.createProperties(createConfiguration(Imap.Protocol.IMAPS), 5000);
+
+		assertEquals("imaps", properties.getProperty("mail.store.protocol")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals("imap.example.com", properties.getProperty("mail.imaps.host")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals("true", properties.getProperty("mail.imaps.ssl.checkserveridentity")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertNull(properties.getProperty("mail.imap.starttls.enable")); //$NON-NLS-1$
+
+	}
+
+	@Test
+	public void testMissingProtocol() {
+
+		Properties properties = ImapAppender.createProperties(createConfiguration(null), 5000);
+
+		assertEquals("imap", properties.getProperty("mail.store.protocol")); //$NON-NLS-1$ //$NON-NLS-2$
+		assertEquals("true", properties.getProperty("mail.imap.starttls.enable")); //$NON-NLS-1$ //$NON-NLS-2$
+
+	}
+
+	private static ImapConfiguration createConfiguration(Imap.Protocol protocol) {
+
+		ImapConfiguration imapConfiguration = new ImapConfiguration();
+		imapConfiguration.setHost("imap.example.com"); //$NON-NLS-1$
+		imapConfiguration.setPort(143);
+		imapConfiguration.setProtocol(protocol);
+
+		return imapConfiguration;
+
+	}
+
+}
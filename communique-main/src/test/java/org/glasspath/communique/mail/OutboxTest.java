@@ -0,0 +1,342 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.glasspath.common.share.mail.Mailable;
+import org.glasspath.common.share.mail.account.Account;
+import org.glasspath.communique.Communique;
+import org.glasspath.communique.Configuration;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.mail.AuthenticationFailedException;
+
+public class OutboxTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private final ObjectMapper objectMapper = new ObjectMapper();
+
+	@BeforeClass
+	public static void setUpLogger() {
+		if (Communique.LOGGER == null) {
+			Communique.LOGGER = LoggerFactory.getLogger(Communique.class);
+		}
+	}
+
+	@Test
+	public void testReplay() throws IOException {
+
+		File dir = folder.newFolder("outbox"); //$NON-NLS-1$
+
+		List<String> lines = new ArrayList<>();
+		lines.add(createRecord("add", "a", createEntry("a"), 0, 0)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		lines.add(createRecord("add", "b", createEntry("b"), 0, 0)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		lines.add(createRecord("add", "c", createEntry("c"), 0, 0)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		lines.add(createRecord("attempt", "a", null, 3, 12345L)); //$NON-NLS-1$ //$NON-NLS-2$
+		lines.add(createRecord("remove", "b", null, 0, 0)); //$NON-NLS-1$ //$NON-NLS-2$
+		lines.add(createRecord("attempt", "b", null, 5, 0)); //$NON-NLS-1$ //$NON-NLS-2$
+		lines.add("{\"type\":\"attempt\",\"id\":\"c\",\"atte"); //$NON-NLS-1$
+		write(new File(dir, Outbox.JOURNAL_FILE_NAME), lines);
+
+		Outbox outbox = new Outbox(dir, new Configuration(), null, null, null);
+		try {
+
+			List<OutboxEntry> entries = outbox.getPendingEntries();
+			assertEquals(2, entries.size());
+
+			assertEquals("a", entries.get(0).getId()); //$NON-NLS-1$
+			assertEquals(3, entries.get(0).getAttempts());
+			assertEquals(12345L, entries.get(0).getNextAttempt());
+			assertEquals("Subject a", entries.get(0).getMailable().getSubject()); //$NON-NLS-1$
+
+			assertEquals("c", entries.get(1).getId()); //$NON-NLS-1$
+			assertEquals(1, entries.get(1).getAttempts());
+
+		} finally {
+			outbox.close();
+		}
+
+	}
+
+	@Test
+	public void testCompaction() throws IOException {
+
+		File dir = folder.newFolder("outbox"); //$NON-NLS-1$
+		File journalFile = new File(dir, Outbox.JOURNAL_FILE_NAME);
+
+		List<String> lines = new ArrayList<>();
+		lines.add(createRecord("add", "a", createEntry("a"), 0, 0)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		lines.add(createRecord("add", "b", createEntry("b"), 0, 0)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		lines.add(createRecord("attempt", "a", null, 4, 999L)); //$NON-NLS-1$ //$NON-NLS-2$
+		lines.add(createRecord("remove", "b", null, 0, 0)); //$NON-NLS-1$ //$NON-NLS-2$
+		write(journalFile, lines);
+
+		// Images of entries which no longer exist are deleted as well
+		File orphan = new File(new File(dir, Outbox.IMAGES_DIR_NAME), "b"); //$NON-NLS-1$
+		orphan.mkdirs();
+		Files.write(new File(orphan, "image.png").toPath(), new byte[] { 1, 2, 3 }); //$NON-NLS-1$
+
+		new Outbox(dir, new Configuration(), null, null, null).close();
+
+		List<String> compacted = Files.readAllLines(journalFile.toPath(), StandardCharsets.UTF_8);
+		assertEquals(1, compacted.size());
+
+		Outbox.JournalRecord record = objectMapper.readValue(compacted.get(0), Outbox.JournalRecord.class);
+		assertEquals("add", record.getType()); //$NON-NLS-1$
+		assertEquals("a", record.getId()); //$NON-NLS-1$
+		assertEquals(4, record.getEntry().getAttempts());
+		assertEquals(999L, record.getEntry().getNextAttempt());
+
+		assertFalse(orphan.exists());
+		assertFalse(new File(dir, Outbox.JOURNAL_FILE_NAME + ".tmp").exists()); //$NON-NLS-1$
+
+		// Loading the compacted journal gives the same state
+		Outbox outbox = new Outbox(dir, new Configuration(), null, null, null);
+		try {
+			assertEquals(1, outbox.getPendingEntries().size());
+			assertEquals(4, outbox.getPendingEntries().get(0).getAttempts());
+		} finally {
+			outbox.close();
+		}
+
+	}
+
+	@Test
+	public void testAddSurvivesRestart() throws IOException {
+
+		File dir = folder.newFolder("outbox"); //$NON-NLS-1$
+
+		Account account = new Account();
+		account.setEmail("sender@example.com"); //$NON-NLS-1$
+
+		Mailable mailable = new Mailable();
+		mailable.setSubject("Pending"); //$NON-NLS-1$
+
+		String id;
+		Outbox outbox = new Outbox(dir, new Configuration(), null, null, null);
+		try {
+			id = outbox.add(mailable, account, null);
+			assertEquals(1, outbox.getPendingCount(account));
+			assertEquals(null, outbox.getOutcome(id));
+		} finally {
+			outbox.close();
+		}
+
+		outbox = new Outbox(dir, new Configuration(), null, null, null);
+		try {
+
+			List<OutboxEntry> entries = outbox.getPendingEntries();
+			assertEquals(1, entries.size());
+			assertEquals(id, entries.get(0).getId());
+			assertEquals("sender@example.com", entries.get(0).getAccount()); //$NON-NLS-1$
+			assertEquals("Pending", entries.get(0).getMailable().getSubject()); //$NON-NLS-1$
+			assertEquals(1, entries.get(0).getAttempts());
+
+		} finally {
+			outbox.close();
+		}
+
+	}
+
+	@Test
+	public void testSingleOwner() throws IOException {
+
+		File dir = folder.newFolder("outbox"); //$NON-NLS-1$
+		write(new File(dir, Outbox.JOURNAL_FILE_NAME), Arrays.asList(createRecord("add", "a", createEntry("a"), 0, 0))); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+		Account account = new Account();
+		account.setEmail("sender@example.com"); //$NON-NLS-1$
+
+		Outbox owner = new Outbox(dir, new Configuration(), null, null, null);
+		Outbox other = new Outbox(dir, new Configuration(), null, null, null);
+		String id;
+		try {
+
+			assertTrue(owner.isOwner());
+			assertFalse(other.isOwner());
+
+			// Entries of the owner are not replayed by the other outbox
+			assertEquals(1, owner.getPendingEntries().size());
+			assertEquals(0, other.getPendingEntries().size());
+
+			id = other.add(new Mailable(), account, null);
+
+		} finally {
+			other.close();
+			owner.close();
+		}
+
+		assertEquals(1, countJournals(dir));
+
+		// The next owner adopts the journal of the closed outbox
+		Outbox next = new Outbox(dir, new Configuration(), null, null, null);
+		try {
+
+			assertTrue(next.isOwner());
+			assertEquals(2, next.getPendingEntries().size());
+			assertEquals(id, next.getPendingEntries().get(1).getId());
+
+		} finally {
+			next.close();
+		}
+
+		assertEquals(0, countJournals(dir));
+
+		next = new Outbox(dir, new Configuration(), null, null, null);
+		try {
+			assertEquals(2, next.getPendingEntries().size());
+		} finally {
+			next.close();
+		}
+
+	}
+
+	@Test
+	public void testClosed() throws IOException {
+
+		File dir = folder.newFolder("outbox"); //$NON-NLS-1$
+		File journalFile = new File(dir, Outbox.JOURNAL_FILE_NAME);
+
+		Account account = new Account();
+		account.setEmail("sender@example.com"); //$NON-NLS-1$
+
+		Outbox outbox = new Outbox(dir, new Configuration(), null, null, null);
+		outbox.close();
+		outbox.close();
+
+		try {
+			outbox.add(new Mailable(), account, null);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+
+		outbox.resume(account, "password"); //$NON-NLS-1$
+
+		assertEquals(0, outbox.getPendingEntries().size());
+		assertFalse(journalFile.exists() && journalFile.length() > 0);
+
+	}
+
+	@Test
+	public void testRetryDelay() {
+
+		for (int i = 0; i < 100; i++) {
+
+			for (int attempts = 1; attempts <= Outbox.MAX_ATTEMPTS; attempts++) {
+
+				long delay = Math.min(Outbox.RETRY_BASE_DELAY << (attempts - 1), Outbox.RETRY_MAX_DELAY);
+				long retryDelay = Outbox.getRetryDelay(attempts);
+
+				assertTrue(retryDelay >= delay / 2);
+				assertTrue(retryDelay <= delay);
+
+			}
+
+		}
+
+		// Large attempt counts must not overflow
+		assertTrue(Outbox.getRetryDelay(64) >= Outbox.RETRY_MAX_DELAY / 2);
+		assertTrue(Outbox.getRetryDelay(Integer.MAX_VALUE) <= Outbox.RETRY_MAX_DELAY);
+
+	}
+
+	@Test
+	public void testIsTransient() {
+
+		assertTrue(Outbox.isTransient(new IOException("Connection reset"))); //$NON-NLS-1$
+		assertTrue(Outbox.isTransient(new RuntimeException(new IOException("Timed out")))); //$NON-NLS-1$
+		assertFalse(Outbox.isTransient(new AuthenticationFailedException("535"))); //$NON-NLS-1$
+		assertFalse(Outbox.isTransient(new IllegalStateException()));
+
+	}
+
+	private OutboxEntry createEntry(String id) {
+
+		Mailable mailable = new Mailable();
+		mailable.setTo(Arrays.asList(id + "@example.com")); //$NON-NLS-1$
+		mailable.setSubject("Subject " + id); //$NON-NLS-1$
+
+		OutboxEntry entry = new OutboxEntry();
+		entry.setId(id);
+		entry.setAccount("sender@example.com"); //$NON-NLS-1$
+		entry.setMailable(mailable);
+		entry.setAttempts(1);
+		entry.setNextAttempt(0);
+
+		return entry;
+
+	}
+
+	private String createRecord(String type, String id, OutboxEntry entry, int attempts, long nextAttempt) throws IOException {
+
+		Outbox.JournalRecord record = new Outbox.JournalRecord();
+		record.setType(type);
+		record.setId(id);
+		record.setEntry(entry);
+		record.setAttempts(attempts);
+		record.setNextAttempt(nextAttempt);
+
+		return objectMapper.writeValueAsString(record);
+
+	}
+
+	private static int countJournals(File dir) {
+
+		int count = 0;
+
+		for (File file : dir.listFiles()) {
+			if (file.getName().startsWith(Outbox.JOURNAL_PREFIX)) {
+				count++;
+			}
+		}
+
+		return count;
+
+	}
+
+	private static void write(File file, List<String> lines) throws IOException {
+		Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glasspath.common.share.mail.account.Account;
+import org.glasspath.communique.Communique;
+import org.glasspath.communique.Configuration;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class SendExecutorTest {
+
+	@BeforeClass
+	public static void setUpLogger() {
+		if (Communique.LOGGER == null) {
+			Communique.LOGGER = LoggerFactory.getLogger(Communique.class);
+		}
+	}
+
+	@Test
+	public void testMaxConnections() throws Exception {
+
+		Configuration configuration = new Configuration();
+		configuration.setMaxConnectionsPerAccount(2);
+		configuration.setMaxMessagesPerSecond(0);
+
+		SendExecutor sendExecutor = new SendExecutor();
+		sendExecutor.configure(configuration);
+
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+
+		List<Future<Boolean>> results = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			results.add(sendExecutor.submit(createAccount("a@example.com"), new Callable<Boolean>() { //$NON-NLS-1$
+
+				@Override
+				public Boolean call() throws Exception {
+					int count = running.incrementAndGet();
+					synchronized (maxRunning) {
+						maxRunning.set(Math.max(maxRunning.get(), count));
+					}
+					Thread.sleep(20);
+					running.decrementAndGet();
+					return true;
+				}
+			}));
+		}
+
+		for (Future<Boolean> result : results) {
+			assertTrue(result.get(10, TimeUnit.SECONDS));
+		}
+
+		assertEquals(2, maxRunning.get());
+
+		sendExecutor.shutdown();
+
+	}
+
+	@Test
+	public void testShutdownCancelsPendingTasks() throws Exception {
+
+		Configuration configuration = new Configuration();
+		configuration.setMaxConnectionsPerAccount(1);
+
+		SendExecutor sendExecutor = new SendExecutor();
+		sendExecutor.configure(configuration);
+
+		final CountDownLatch started = new CountDownLatch(1);
+		Account account = createAccount("a@example.com"); //$NON-NLS-1$
+
+		Future<?> running = sendExecutor.submit(account, new Runnable() {
+
+			@Override
+			public void run() {
+				started.countDown();
+				try {
+					Thread.sleep(60000);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+
+		Future<?> pending = sendExecutor.submit(account, new Runnable() {
+
+			@Override
+			public void run() {
+
+			}
+		});
+
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+
+		sendExecutor.shutdown();
+
+		assertCancelled(pending);
+		running.get(10, TimeUnit.SECONDS);
+
+		// Submitting after shutdown doesn't queue anything
+		assertCancelled(sendExecutor.submit(account, new Runnable() {
+
+			@Override
+			public void run() {
+
+			}
+		}));
+
+	}
+
+	@Test
+	public void testSharedInstance() {
+
+		SendExecutor sendExecutor = SendExecutor.getInstance();
+		assertTrue(sendExecutor == SendExecutor.getInstance());
+
+		sendExecutor.shutdown();
+		assertTrue(sendExecutor != SendExecutor.getInstance());
+
+	}
+
+	private static void assertCancelled(Future<?> future) throws InterruptedException, ExecutionException, TimeoutException {
+		try {
+			future.get(10, TimeUnit.SECONDS);
+			fail();
+		} catch (CancellationException e) {
+			assertTrue(future.isCancelled());
+		}
+	}
+
+	private static Account createAccount(String email) {
+		Account account = new Account();
+		account.setEmail(email);
+		return account;
+	}
+
+}
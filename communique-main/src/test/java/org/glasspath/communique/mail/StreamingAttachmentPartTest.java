@@ -0,0 +1,148 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import jakarta.mail.MessagingException;
+import jakarta.mail.Multipart;
+import jakarta.mail.Part;
+import jakarta.mail.Session;
+import jakarta.mail.internet.MimeMessage;
+
+public class StreamingAttachmentPartTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void testLineBreaks() throws IOException, MessagingException {
+
+		int chunk = StreamingAttachmentPart.CHUNK_SIZE;
+		int[] sizes = new int[] { 0, 1, 56, 57, 58, chunk - 1, chunk, chunk + 1, 3 * chunk + 100 };
+
+		for (int size : sizes) {
+
+			byte[] bytes = createBytes(size);
+			File file = createFile(size + ".bin", bytes); //$NON-NLS-1$
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			new StreamingAttachmentPart(file).writeTo(out);
+			String written = new String(out.toByteArray(), StandardCharsets.US_ASCII);
+
+			int headerEnd = written.indexOf("\r\n\r\n"); //$NON-NLS-1$
+			assertTrue(headerEnd > 0);
+			assertTrue(written.substring(0, headerEnd).contains("Content-Transfer-Encoding: base64")); //$NON-NLS-1$
+
+			String body = written.substring(headerEnd + 4);
+			assertEquals("size " + size, -1, body.replace("\r\n", "").indexOf('\n')); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			assertEquals("size " + size, -1, body.replace("\r\n", "").indexOf('\r')); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+			// Every line but the last one is exactly 76 characters, also at chunk boundaries
+			String[] lines = body.split("\r\n", -1); //$NON-NLS-1$
+			for (int i = 0; i < lines.length - 1; i++) {
+				assertEquals("size " + size + ", line " + i, 76, lines[i].length()); //$NON-NLS-1$ //$NON-NLS-2$
+			}
+			assertTrue("size " + size, lines[lines.length - 1].length() <= 76); //$NON-NLS-1$
+			if (size > 0) {
+				assertTrue("size " + size, lines[lines.length - 1].length() > 0); //$NON-NLS-1$
+			}
+
+			assertArrayEquals("size " + size, bytes, Base64.getMimeDecoder().decode(body)); //$NON-NLS-1$
+
+		}
+
+	}
+
+	@Test
+	public void testAttach() throws IOException, MessagingException {
+
+		byte[] bytes = createBytes(2 * StreamingAttachmentPart.CHUNK_SIZE + 7);
+		File file = createFile("report.pdf", bytes); //$NON-NLS-1$
+
+		Session session = Session.getInstance(new Properties());
+
+		MimeMessage message = new MimeMessage(session);
+		message.setSubject("Report"); //$NON-NLS-1$
+		message.setText("See attachment"); //$NON-NLS-1$
+		message.saveChanges();
+
+		StreamingAttachmentPart.attach(message, Arrays.asList(file));
+		message.saveChanges();
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		message.writeTo(out);
+
+		MimeMessage parsed = new MimeMessage(session, new ByteArrayInputStream(out.toByteArray()));
+		Multipart multipart = (Multipart) parsed.getContent();
+		assertEquals(2, multipart.getCount());
+		assertEquals("See attachment", multipart.getBodyPart(0).getContent()); //$NON-NLS-1$
+
+		Part attachment = multipart.getBodyPart(1);
+		assertEquals(Part.ATTACHMENT, attachment.getDisposition());
+		assertEquals("report.pdf", attachment.getFileName()); //$NON-NLS-1$
+
+		ByteArrayOutputStream content = new ByteArrayOutputStream();
+		try (InputStream in = attachment.getInputStream()) {
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) >= 0) {
+				content.write(buffer, 0, n);
+			}
+		}
+
+		assertArrayEquals(bytes, content.toByteArray());
+
+	}
+
+	private File createFile(String name, byte[] bytes) throws IOException {
+		File file = new File(folder.getRoot(), name);
+		Files.write(file.toPath(), bytes);
+		return file;
+	}
+
+	private static byte[] createBytes(int size) {
+		byte[] bytes = new byte[size];
+		new Random(size).nextBytes(bytes);
+		return bytes;
+	}
+
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.mail;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+	@Test
+	public void testUnlimited() throws InterruptedException {
+
+		TokenBucket bucket = new TokenBucket(0);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 1000; i++) {
+			bucket.acquire();
+		}
+
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+
+	}
+
+	@Test
+	public void testBurst() throws InterruptedException {
+
+		TokenBucket bucket = new TokenBucket(20);
+		assertEquals(20.0, bucket.getRate(), 0.0);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 20; i++) {
+			bucket.acquire();
+		}
+
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+
+	}
+
+	@Test
+	public void testRate() throws InterruptedException {
+
+		TokenBucket bucket = new TokenBucket(20);
+		for (int i = 0; i < 20; i++) {
+			bucket.acquire();
+		}
+
+		// The bucket is empty, 10 more tokens take about half a second
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			bucket.acquire();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(400));
+		assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(2000));
+
+	}
+
+	@Test
+	public void testFractionalRate() throws InterruptedException {
+
+		// Rates below one still allow a single token without waiting
+		TokenBucket bucket = new TokenBucket(0.5);
+
+		long start = System.nanoTime();
+		bucket.acquire();
+
+		assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(250));
+
+	}
+
+}
@@ -0,0 +1,125 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.media;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.glasspath.communique.Communique;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+
+public class ImageStoreTest {
+
+	private static final long DAY = 24L * 60L * 60L * 1000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@BeforeClass
+	public static void setUpLogger() {
+		if (Communique.LOGGER == null) {
+			Communique.LOGGER = LoggerFactory.getLogger(Communique.class);
+		}
+	}
+
+	@Test
+	public void testStoreTwice() throws IOException {
+
+		ImageStore store = new ImageStore(folder.getRoot(), ImageStore.DEFAULT_MAX_SIZE, ImageStore.DEFAULT_MAX_AGE);
+		byte[] bytes = new byte[] { 1, 2, 3, 4, 5 };
+
+		File file = store.store("image.png", bytes); //$NON-NLS-1$
+		assertEquals(bytes.length, store.getSize());
+
+		// Removed by another process, written again
+		file.delete();
+		assertEquals(file, store.store("image.png", bytes)); //$NON-NLS-1$
+		assertEquals(bytes.length, store.getSize());
+		assertEquals(bytes.length, file.length());
+
+		File[] files = file.getParentFile().listFiles();
+		assertEquals(1, files.length);
+
+	}
+
+	@Test
+	public void testEvictUsedByOtherProcess() throws IOException {
+
+		ImageStore store = new ImageStore(folder.getRoot(), ImageStore.DEFAULT_MAX_SIZE, ImageStore.DEFAULT_MAX_AGE);
+		File used = store.store("used.png", new byte[] { 1 }); //$NON-NLS-1$
+		File unused = store.store("unused.png", new byte[] { 2 }); //$NON-NLS-1$
+
+		// Both past the minimum age, the used image is the least recently used one
+		long old = System.currentTimeMillis() - 3 * ImageStore.MIN_AGE;
+		setLastModified(used, old - 1000);
+		setLastModified(unused, old);
+
+		ImageStore otherStore = new ImageStore(folder.getRoot(), 2, ImageStore.DEFAULT_MAX_AGE);
+		assertEquals(2, otherStore.getSize());
+
+		// Used by the first process after the other process indexed the store
+		setLastModified(used, old + ImageStore.MIN_AGE);
+
+		// Makes the other store too large
+		File added = otherStore.store("added.png", new byte[] { 3 }); //$NON-NLS-1$
+		assertTrue(added.isFile());
+		assertTrue(used.isFile());
+		assertFalse(unused.exists());
+		assertFalse(unused.getParentFile().exists());
+		assertEquals(2, otherStore.getSize());
+
+	}
+
+	@Test
+	public void testTempFiles() throws IOException {
+
+		ImageStore store = new ImageStore(folder.getRoot(), ImageStore.DEFAULT_MAX_SIZE, ImageStore.DEFAULT_MAX_AGE);
+		File file = store.store("image.png", new byte[] { 1, 2, 3 }); //$NON-NLS-1$
+
+		// Written by another process, the old one was left behind
+		File writing = Files.createTempFile(file.getParentFile().toPath(), null, ".tmp").toFile(); //$NON-NLS-1$
+		File leftBehind = Files.createTempFile(file.getParentFile().toPath(), null, ".tmp").toFile(); //$NON-NLS-1$
+		leftBehind.setLastModified(System.currentTimeMillis() - DAY);
+
+		ImageStore otherStore = new ImageStore(folder.getRoot(), ImageStore.DEFAULT_MAX_SIZE, ImageStore.DEFAULT_MAX_AGE);
+		assertEquals(3, otherStore.getSize());
+		assertTrue(writing.exists());
+		assertFalse(leftBehind.exists());
+
+	}
+
+	private static void setLastModified(File file, long time) {
+		file.setLastModified(time);
+		file.getParentFile().setLastModified(time);
+	}
+
+}
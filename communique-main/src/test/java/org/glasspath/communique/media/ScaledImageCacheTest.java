@@ -0,0 +1,265 @@
+/*
+ * This file is part of Glasspath Communique.
+ * Copyright (C) 2011 - 2022 Remco Poelstra
+ * Authors: Remco Poelstra
+ * 
+ * This program is offered under a commercial and under the AGPL license.
+ * For commercial licensing, contact us at https://glasspath.org. For AGPL licensing, see below.
+ * 
+ * AGPL licensing:
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Affero General Public License for more details.
+ * 
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program. If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.glasspath.communique.media;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.GraphicsConfiguration;
+import java.awt.GraphicsDevice;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.glasspath.communique.Communique;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+public class ScaledImageCacheTest {
+
+	@BeforeClass
+	public static void setUpLogger() {
+		if (Communique.LOGGER == null) {
+			Communique.LOGGER = LoggerFactory.getLogger(Communique.class);
+		}
+	}
+
+	@Test
+	public void testNotScaledDown() {
+
+		ScaledImageCache cache = new ScaledImageCache();
+		BufferedImage image = new BufferedImage(100, 50, BufferedImage.TYPE_INT_RGB);
+
+		assertNull(cache.getScaledImage(image, 100, 50, null, null));
+		assertNull(cache.getScaledImage(image, 200, 100, null, null));
+		assertNull(cache.getScaledImage(image, 0, 10, null, null));
+		assertNull(cache.getScaledImage(null, 10, 10, null, null));
+		assertEquals(0, cache.getSize());
+
+	}
+
+	@Test
+	public void testVariant() throws InterruptedException {
+
+		ScaledImageCache cache = new ScaledImageCache();
+		BufferedImage image = new BufferedImage(400, 200, BufferedImage.TYPE_INT_ARGB);
+
+		BufferedImage variant = getScaledImage(cache, image, 30, 15);
+		assertEquals(30, variant.getWidth());
+		assertEquals(15, variant.getHeight());
+		assertTrue(variant.getColorModel().hasAlpha());
+		assertEquals(4L * 30 * 15, cache.getSize());
+
+		// Served from the cache without building it again
+		assertSame(variant, cache.getScaledImage(image, 30, 15, null, null));
+
+	}
+
+	@Test
+	public void testEviction() throws InterruptedException {
+
+		ScaledImageCache cache = new ScaledImageCache();
+		cache.setMaxSize(2L * 4L * 10 * 10);
+
+		BufferedImage first = new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB);
+		BufferedImage second = new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB);
+		BufferedImage third = new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB);
+
+		getScaledImage(cache, first, 10, 10);
+		getScaledImage(cache, second, 10, 10);
+		assertEquals(800L, cache.getSize());
+
+		// Using the first variant makes the second one the least recently used
+		assertNotNull(cache.getScaledImage(first, 10, 10, null, null));
+
+		getScaledImage(cache, third, 10, 10);
+		assertEquals(800L, cache.getSize());
+
+		assertNotNull(cache.getScaledImage(first, 10, 10, null, null));
+		assertNotNull(cache.getScaledImage(third, 10, 10, null, null));
+		assertNull(cache.getScaledImage(second, 10, 10, null, null));
+
+	}
+
+	@Test
+	public void testMaxSize() throws InterruptedException {
+
+		ScaledImageCache cache = new ScaledImageCache();
+		BufferedImage image = new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB);
+
+		getScaledImage(cache, image, 20, 20);
+		getScaledImage(cache, image, 10, 10);
+		assertEquals(4L * (20 * 20 + 10 * 10), cache.getSize());
+
+		cache.setMaxSize(4L * 10 * 10);
+		assertEquals(4L * 10 * 10, cache.getSize());
+
+		cache.clear();
+		assertEquals(0, cache.getSize());
+		assertNull(cache.getScaledImage(image, 10, 10, null, null));
+
+	}
+
+	@Test
+	public void testFailed() throws InterruptedException {
+
+		ScaledImageCache cache = new ScaledImageCache();
+		BufferedImage image = new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB);
+		AtomicInteger builds = new AtomicInteger();
+
+		GraphicsConfiguration graphicsConfiguration = new TestGraphicsConfiguration() {
+
+			@Override
+			public BufferedImage createCompatibleImage(int width, int height, int transparency) {
+				builds.incrementAndGet();
+				throw new IllegalStateException("Test"); //$NON-NLS-1$
+			}
+		};
+
+		assertNull(cache.getScaledImage(image, 10, 10, graphicsConfiguration, null));
+
+		// Builds run in order, once the next one is ready the failed one has finished
+		getScaledImage(cache, new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB), 10, 10);
+		assertEquals(1, builds.get());
+
+		// Not built again on the next paint
+		assertNull(cache.getScaledImage(image, 10, 10, graphicsConfiguration, null));
+		getScaledImage(cache, new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB), 10, 10);
+		assertEquals(1, builds.get());
+
+		cache.clear();
+		assertNull(cache.getScaledImage(image, 10, 10, graphicsConfiguration, null));
+		getScaledImage(cache, new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB), 10, 10);
+		assertEquals(2, builds.get());
+
+	}
+
+	@Test
+	public void testClearWhileBuilding() throws InterruptedException {
+
+		ScaledImageCache cache = new ScaledImageCache();
+		BufferedImage image = new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB);
+		CountDownLatch building = new CountDownLatch(1);
+		CountDownLatch cleared = new CountDownLatch(1);
+		AtomicInteger callbacks = new AtomicInteger();
+
+		GraphicsConfiguration graphicsConfiguration = new TestGraphicsConfiguration() {
+
+			@Override
+			public BufferedImage createCompatibleImage(int width, int height, int transparency) {
+				building.countDown();
+				try {
+					cleared.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			}
+		};
+
+		assertNull(cache.getScaledImage(image, 10, 10, graphicsConfiguration, new Runnable() {
+
+			@Override
+			public void run() {
+				callbacks.incrementAndGet();
+			}
+		}));
+
+		assertTrue(building.await(10, TimeUnit.SECONDS));
+		cache.clear();
+		cleared.countDown();
+
+		// The variant of the cleared build is dropped and its callback is not invoked
+		getScaledImage(cache, new BufferedImage(40, 40, BufferedImage.TYPE_INT_RGB), 10, 10);
+		assertEquals(0, callbacks.get());
+		assertEquals(4L * 10 * 10, cache.getSize());
+
+		// Requested again it is built again
+		getScaledImage(cache, image, 10, 10);
+
+	}
+
+	private static BufferedImage getScaledImage(ScaledImageCache cache, BufferedImage image, int width, int height) throws InterruptedException {
+
+		final CountDownLatch ready = new CountDownLatch(1);
+
+		assertNull(cache.getScaledImage(image, width, height, null, new Runnable() {
+
+			@Override
+			public void run() {
+				ready.countDown();
+			}
+		}));
+
+		assertTrue(ready.await(10, TimeUnit.SECONDS));
+
+		BufferedImage variant = cache.getScaledImage(image, width, height, null, null);
+		assertNotNull(variant);
+
+		return variant;
+
+	}
+
+	private static class TestGraphicsConfiguration extends GraphicsConfiguration {
+
+		@Override
+		public GraphicsDevice getDevice() {
+			return null;
+		}
+
+		@Override
+		public ColorModel getColorModel() {
+			return ColorModel.getRGBdefault();
+		}
+
+		@Override
+		public ColorModel getColorModel(int transparency) {
+			return ColorModel.getRGBdefault();
+		}
+
+		@Override
+		public AffineTransform getDefaultTransform() {
+			return new AffineTransform();
+		}
+
+		@Override
+		public AffineTransform getNormalizingTransform() {
+			return new AffineTransform();
+		}
+
+		@Override
+		public Rectangle getBounds() {
+			return new Rectangle(0, 0, 100, 100);
+		}
+
+	}
+
+}